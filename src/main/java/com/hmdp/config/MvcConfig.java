@@ -1,14 +1,18 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.LocalCache;
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.RedisHealthProbe;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
@@ -16,6 +20,17 @@ public class MvcConfig implements WebMvcConfigurer {
     @Autowired
     private StringRedisTemplate redisTemplate;
 
+    @Resource
+    private RedisHealthProbe redisHealthProbe;
+
+    //本地保留的登录用户最大数量
+    @Value("${hmdp.redis.degraded.login-capacity:10000}")
+    private int loginCapacity;
+
+    //本地登录用户的存活时间,单位秒
+    @Value("${hmdp.redis.degraded.login-ttl:300}")
+    private long loginTtl;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         //配置登录验证拦截器
@@ -28,13 +43,18 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/shop/**",
                         "/upload/**",
                         "/voucher/**",
-                        "/shop-type/**"
+                        "/shop-type/**",
+                        "/actuator/**"
                 ).order(1);
+        //优惠券库存的查询和补货是管理接口,不在上面的放行范围内
+        registry.addInterceptor(new LoginInterceptor())
+                .addPathPatterns("/voucher/seckill/*/stock").order(1);
 
         //token刷新的拦截器
         //拦截所有请求
         //通过order来控制拦截器的执行顺序
-        registry.addInterceptor(new RefreshTokenInterceptor(redisTemplate))
+        registry.addInterceptor(new RefreshTokenInterceptor(redisTemplate, redisHealthProbe
+                        , new LocalCache(loginCapacity, TimeUnit.SECONDS.toMillis(loginTtl))))
                 .addPathPatterns("/**").order(0);
     }
 }
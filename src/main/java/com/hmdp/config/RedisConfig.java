@@ -0,0 +1,76 @@
+package com.hmdp.config;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+@Configuration
+public class RedisConfig {
+
+    /**
+     * Redis发布订阅的监听容器,用于接收其他节点广播的消息(例如本地缓存失效)
+     * @param connectionFactory
+     * @return
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        return container;
+    }
+
+    /**
+     * 值为字节数组的RedisTemplate,CacheClient用它读写经过CacheCodec编码的缓存
+     * @param connectionFactory
+     * @return
+     */
+    @Bean
+    public RedisTemplate<String, byte[]> byteRedisTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        return template;
+    }
+
+    /**
+     * 异步查询缓存使用的Lettuce客户端,地址和密码与spring.redis的配置一致
+     * @param properties
+     * @return
+     */
+    @Bean(destroyMethod = "shutdown")
+    public RedisClient asyncRedisClient(RedisProperties properties) {
+        RedisURI.Builder builder = RedisURI.builder()
+                .withHost(properties.getHost())
+                .withPort(properties.getPort())
+                .withDatabase(properties.getDatabase());
+        if (properties.getPassword() != null) {
+            builder.withPassword(properties.getPassword());
+        }
+        if (properties.getTimeout() != null) {
+            builder.withTimeout(properties.getTimeout());
+        }
+        return RedisClient.create(builder.build());
+    }
+
+    /**
+     * 异步查询缓存使用的连接,key为字符串,值为字节数组
+     * Lettuce的连接是线程安全的,所有异步请求复用同一个连接,不占用连接池
+     * @param asyncRedisClient
+     * @return
+     */
+    @Bean(destroyMethod = "close")
+    public StatefulRedisConnection<String, byte[]> asyncRedisConnection(RedisClient asyncRedisClient) {
+        return asyncRedisClient.connect(RedisCodec.of(StringCodec.UTF8, ByteArrayCodec.INSTANCE));
+    }
+}
@@ -15,7 +15,9 @@ public class RedissonConfig {
         //配置类
         Config config = new Config();
         //添加redis地址,这里添加了单点的地址,也可以使用config.useClusterServers()添加集群地址
-        config.useSingleServer().setAddress("redis://43.143.193.129:6379").setPassword("123456");
+        config.useSingleServer().setAddress("redis://43.143.193.129:6379").setPassword("123456")
+                //redis不可用时快速失败,不让下单线程长时间阻塞
+                .setConnectTimeout(1000).setTimeout(500).setRetryAttempts(1);
         //创建客户端
         return Redisson.create(config);
     }
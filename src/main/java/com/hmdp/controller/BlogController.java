@@ -46,9 +46,14 @@ public class BlogController {
     }
 
     @GetMapping("/of/me")
-    public Result queryMyBlog(@RequestParam(value = "current", defaultValue = "1") Integer current) {
+    public Result queryMyBlog(@RequestParam(value = "current", defaultValue = "1") Integer current,
+                              @RequestParam(value = "cursor", required = false) String cursor) {
         // 获取登录用户
         UserDTO user = UserHolder.getUser();
+        // 传入游标时使用游标分页,第一页传空串
+        if (cursor != null) {
+            return blogService.queryBlogOfUserByCursor(user.getId(), cursor);
+        }
         // 根据用户查询
         Page<Blog> page = blogService.query()
                 .eq("user_id", user.getId()).page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
@@ -58,7 +63,13 @@ public class BlogController {
     }
 
     @GetMapping("/hot")
-    public Result queryHotBlog(@RequestParam(value = "current", defaultValue = "1") Integer current) {
+    public Result queryHotBlog(@RequestParam(value = "current", defaultValue = "1") Integer current,
+                               @RequestParam(value = "cursor", required = false) String cursor) {
+        // 传入游标时使用游标分页,第一页传空串
+        // 按点赞数排序,翻页期间点赞数变化时可能重复或遗漏,顺序是近似的
+        if (cursor != null) {
+            return blogService.queryHotBlogByCursor(cursor);
+        }
         return blogService.queryHotBlog(current);
     }
 
@@ -88,12 +99,17 @@ public class BlogController {
      * 根据用户id查询博客信息
      * @param current
      * @param id
+     * @param cursor 游标,传入时使用游标分页,第一页传空串,下一页传上一页返回的游标
      * @return
      */
     @GetMapping("/of/user")
     public Result queryBlogByUserId(
             @RequestParam(value = "current", defaultValue = "1") Integer current,
-            @RequestParam("id") Long id) {
+            @RequestParam("id") Long id,
+            @RequestParam(value = "cursor", required = false) String cursor) {
+        if (cursor != null) {
+            return blogService.queryBlogOfUserByCursor(id, cursor);
+        }
         //1.根据用户查询
         Page<Blog> page = blogService.query()
                 .eq("user_id", id).page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
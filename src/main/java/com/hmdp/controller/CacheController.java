@@ -0,0 +1,86 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.impl.ShopCachePreloader;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRebuildScheduler;
+import com.hmdp.utils.HotKeyDetector;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 缓存管理控制器
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private ShopCachePreloader shopCachePreloader;
+
+    @Resource
+    private CacheRebuildScheduler cacheRebuildScheduler;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    /**
+     * 查询各级缓存的命中率
+     * @return 命中统计
+     */
+    @GetMapping("/stats")
+    public Result queryStats() {
+        return Result.ok(cacheClient.stats());
+    }
+
+    /**
+     * 查询缓存重建的队列深度和耗时
+     * @return 重建统计
+     */
+    @GetMapping("/rebuild/stats")
+    public Result queryRebuildStats() {
+        return Result.ok(cacheRebuildScheduler.stats());
+    }
+
+    /**
+     * 查询本节点最近访问次数最多的key
+     * @param k 返回的数量
+     * @return key -> 滑动窗口内的访问次数
+     */
+    @GetMapping("/hotkeys")
+    public Result queryHotKeys(@RequestParam(value = "k", defaultValue = "10") Integer k) {
+        return Result.ok(hotKeyDetector.topKeys(k));
+    }
+
+    /**
+     * 手动触发店铺缓存预热
+     * @return 是否开始预热,已经在预热中时返回失败
+     */
+    @PostMapping("/preload/shop")
+    public Result preloadShop() {
+        if (!shopCachePreloader.preloadAsync()) {
+            return Result.fail("店铺缓存正在预热中");
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 查询店铺缓存预热进度
+     * @return 预热进度
+     */
+    @GetMapping("/preload/shop")
+    public Result queryPreloadProgress() {
+        return Result.ok(shopCachePreloader.progress());
+    }
+}
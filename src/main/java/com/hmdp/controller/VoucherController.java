@@ -45,6 +45,27 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 查询秒杀券库存,汇总各库存分段,并与数据库库存对照
+     * @param voucherId 优惠券id
+     * @return 库存信息
+     */
+    @GetMapping("seckill/{id}/stock")
+    public Result querySeckillStock(@PathVariable("id") Long voucherId) {
+        return voucherService.querySeckillStock(voucherId);
+    }
+
+    /**
+     * 补充秒杀券库存
+     * @param voucherId 优惠券id
+     * @param amount 补充的数量
+     * @return 无
+     */
+    @PutMapping("seckill/{id}/stock")
+    public Result restockSeckillVoucher(@PathVariable("id") Long voucherId, @RequestParam("amount") Integer amount) {
+        return voucherService.restockSeckillVoucher(voucherId, amount);
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
@@ -0,0 +1,11 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class CursorResult {
+    private List<?> list;
+    private String cursor;  //下一页的游标,没有下一页时为null
+}
@@ -0,0 +1,13 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class SeckillStockDTO {
+    private Long voucherId;
+    private Integer stock;          //redis中各库存分段之和,即当前可售的库存
+    private List<Integer> buckets;  //每个库存分段的剩余库存,未分段时只有一个
+    private Integer dbStock;        //数据库中的库存,订单异步写入,会暂时大于stock
+}
@@ -18,6 +18,10 @@ public interface IBlogService extends IService<Blog> {
 
     Result queryHotBlog(Integer current);
 
+    Result queryHotBlogByCursor(String cursor);
+
+    Result queryBlogOfUserByCursor(Long userId, String cursor);
+
     Result likeBlog(Long id);
 
     Result queryBlogLikes(Long id);
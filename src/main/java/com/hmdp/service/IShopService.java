@@ -18,5 +18,11 @@ public interface IShopService extends IService<Shop> {
 
     Result update(Shop shop);
 
-//    Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+    Result saveShop(Shop shop);
+
+    Result queryShopByType(Integer typeId, Integer current, Double x, Double y, String cursor);
+
+    Result queryShopByName(String name, Integer current, String cursor);
+
+    Result querySuggestions(String prefix, Integer size);
 }
@@ -3,6 +3,7 @@ package com.hmdp.service.impl;
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
@@ -15,9 +16,13 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.PageCursor;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
@@ -27,7 +32,10 @@ import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -50,6 +58,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private CacheClient cacheClient;
+
     /**
      * 查询热点博客
      *
@@ -64,14 +75,63 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        // 批量查询用户和点赞状态
+        fillBlogs(records);
         return Result.ok(records);
     }
 
+    /**
+     * 游标分页查询热点博客,按点赞数、id倒序
+     * WHERE liked < ? OR (liked = ? AND id < ?) ORDER BY liked DESC, id DESC LIMIT size + 1
+     * 走 (liked, id) 索引,不需要COUNT,也没有深度的 LIMIT offset
+     * 游标记录的是上一页最后一条的点赞数,翻页期间点赞数会变化,顺序是近似的:
+     * 点赞数增加后越过游标的博客不会再出现,减少后落到游标之后的博客可能重复出现,调用方需要按id去重
+     * @param cursor    上一页返回的游标,第一页为空串
+     * @return
+     */
+    @Override
+    public Result queryHotBlogByCursor(String cursor) {
+        PageCursor c = PageCursor.decode(cursor);
+        if (c == null && StrUtil.isNotBlank(cursor)) {
+            return Result.fail("游标无效");
+        }
+        QueryChainWrapper<Blog> wrapper = query();
+        if (c != null) {
+            wrapper.and(w -> w.lt("liked", c.getSortKey())
+                    .or(o -> o.eq("liked", c.getSortKey()).lt("id", c.getId())));
+        }
+        //多查一条,用来判断是否还有下一页
+        List<Blog> blogs = wrapper.orderByDesc("liked", "id")
+                .last("LIMIT " + (SystemConstants.MAX_PAGE_SIZE + 1))
+                .list();
+        // 批量查询用户和点赞状态
+        fillBlogs(blogs);
+        return Result.ok(PageCursor.page(blogs, SystemConstants.MAX_PAGE_SIZE
+                , blog -> new PageCursor(blog.getLiked() == null ? 0 : blog.getLiked(), blog.getId())));
+    }
+
+    /**
+     * 游标分页查询用户的博客,按id倒序,走 (user_id, id) 索引
+     * @param userId
+     * @param cursor    上一页返回的游标,第一页为空串
+     * @return
+     */
+    @Override
+    public Result queryBlogOfUserByCursor(Long userId, String cursor) {
+        PageCursor c = PageCursor.decode(cursor);
+        if (c == null && StrUtil.isNotBlank(cursor)) {
+            return Result.fail("游标无效");
+        }
+        List<Blog> blogs = query()
+                .eq("user_id", userId)
+                .lt(c != null, "id", c == null ? null : c.getId())
+                .orderByDesc("id")
+                .last("LIMIT " + (SystemConstants.MAX_PAGE_SIZE + 1))
+                .list();
+        return Result.ok(PageCursor.page(blogs, SystemConstants.MAX_PAGE_SIZE
+                , blog -> new PageCursor(blog.getId(), blog.getId())));
+    }
+
 
     /**
      * 查询博客
@@ -127,6 +187,52 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     }
 
 
+    /**
+     * 批量填充博客的用户信息和点赞状态
+     * 用户信息通过一次MGET从缓存中批量查询,点赞状态通过pipeline一次性查询
+     *
+     * @param blogs
+     */
+    private void fillBlogs(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        //1.批量查询用户
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        Map<Long, UserDTO> users = cacheClient.queryBatch(RedisConstants.CACHE_USER_KEY, userIds, UserDTO.class
+                        , ids -> userService.listByIds(ids).stream()
+                                .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class)))
+                        , RedisConstants.CACHE_USER_TTL, TimeUnit.MINUTES)
+                .stream()
+                .collect(Collectors.toMap(UserDTO::getId, Function.identity()));
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+
+        //2.批量判断当前登录用户是否已经点赞
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            //用户未登录,无需查询是否点赞
+            return;
+        }
+        String userId = user.getId().toString();
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Blog blog : blogs) {
+                conn.zScore(RedisConstants.BLOG_LIKED_KEY + blog.getId(), userId);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
+
+
     /**
      * 用户是否点赞业务
      *
@@ -267,12 +373,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         String idStr = StrUtil.join(",", ids);
         List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id, " + idStr + ")").list();
 
-        for (Blog blog : blogs) {
-            //查询Blog有关的用户
-            queryBlogUser(blog);
-            //查询Blog是否被点赞
-            isBlogLiked(blog);
-        }
+        //批量查询Blog有关的用户和是否被点赞
+        fillBlogs(blogs);
 
         //5.封装并返回
         ScrollResult r = new ScrollResult();
@@ -0,0 +1,228 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * 店铺缓存预热
+ * 启动时或手动触发时,多个线程按id区间分页查询tb_shop,以逻辑过期的格式批量写入redis
+ * 通过分布式锁保证同一时刻只有一个节点在预热,启动时最近已经预热过则跳过,多个节点同时启动只预热一次
+ * </p>
+ */
+@Slf4j
+@Service
+public class ShopCachePreloader {
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    //是否在启动时预热
+    @Value("${hmdp.cache.preload.on-startup:true}")
+    private boolean onStartup;
+
+    //并行预热的线程数
+    @Value("${hmdp.cache.preload.workers:4}")
+    private int workers;
+
+    //每页查询的店铺数量
+    @Value("${hmdp.cache.preload.page-size:500}")
+    private int pageSize;
+
+    //逻辑过期时间的随机偏移上限,单位秒
+    @Value("${hmdp.cache.preload.jitter:300}")
+    private long jitter;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    //预热进度
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong loaded = new AtomicLong();
+    private volatile long startTime;
+    private volatile long endTime;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (onStartup) {
+            preloadAsync(true);
+        }
+    }
+
+    /**
+     * 手动触发异步预热,本节点已经在预热中时直接返回
+     * @return 是否成功开始预热
+     */
+    public boolean preloadAsync() {
+        return preloadAsync(false);
+    }
+
+    /**
+     * 异步预热
+     * @param startup 是否为启动时的预热,是则在最近已经预热过时跳过
+     * @return 是否成功开始预热
+     */
+    private boolean preloadAsync(boolean startup) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        Thread thread = new Thread(() -> preloadExclusively(startup), "shop-cache-preloader");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * 预热进度
+     * @return
+     */
+    public Map<String, Object> progress() {
+        Map<String, Object> progress = new LinkedHashMap<>();
+        progress.put("running", running.get());
+        progress.put("total", total.get());
+        progress.put("loaded", loaded.get());
+        long end = running.get() ? System.currentTimeMillis() : endTime;
+        progress.put("costMillis", startTime == 0 ? 0 : end - startTime);
+        return progress;
+    }
+
+    /**
+     * 获取分布式锁后预热,其他节点正在预热时直接放弃
+     * @param startup 是否为启动时的预热
+     */
+    private void preloadExclusively(boolean startup) {
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_SHOP_PRELOAD_KEY);
+        boolean isLock = false;
+        try {
+            //1.获取锁,未设置leaseTime时由看门狗续期,预热时间较长也不会提前释放
+            isLock = lock.tryLock();
+            if (!isLock) {
+                log.info("其他节点正在预热店铺缓存,本节点跳过");
+                return;
+            }
+            //2.启动时其他节点最近已经预热过,跳过
+            if (startup && Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.CACHE_SHOP_PRELOADED_KEY))) {
+                log.info("店铺缓存最近已经预热过,本节点跳过");
+                return;
+            }
+            //3.预热成功后记录标记,有效期与缓存的逻辑过期时间相同
+            if (preload()) {
+                stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_PRELOADED_KEY
+                        , String.valueOf(System.currentTimeMillis()), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            }
+        } catch (RuntimeException e) {
+            log.error("店铺缓存预热异常", e);
+        } finally {
+            if (isLock) {
+                lock.unlock();
+            }
+            running.set(false);
+        }
+    }
+
+    /**
+     * 预热所有店铺
+     * @return 是否全部预热成功
+     */
+    private boolean preload() {
+        startTime = System.currentTimeMillis();
+        loaded.set(0);
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            //1.查询id范围和店铺总数
+            Shop first = shopService.query().select("id").orderByAsc("id").last("LIMIT 1").one();
+            Shop last = shopService.query().select("id").orderByDesc("id").last("LIMIT 1").one();
+            if (first == null) {
+                total.set(0);
+                return true;
+            }
+            total.set(shopService.count());
+
+            //2.按id区间分给多个线程
+            long minId = first.getId();
+            long maxId = last.getId();
+            long step = (maxId - minId) / workers + 1;
+            List<Future<?>> futures = new ArrayList<>(workers);
+            for (long begin = minId; begin <= maxId; begin += step) {
+                long from = begin;
+                long to = Math.min(begin + step - 1, maxId);
+                futures.add(executor.submit(() -> preloadRange(from, to)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            log.info("店铺缓存预热完成, 数量: {}, 耗时: {}ms", loaded.get(), System.currentTimeMillis() - startTime);
+            return true;
+        } catch (Exception e) {
+            log.error("店铺缓存预热异常", e);
+            return false;
+        } finally {
+            executor.shutdown();
+            endTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 按id分页预热 [from, to] 区间内的店铺
+     * @param from
+     * @param to
+     */
+    private void preloadRange(long from, long to) {
+        long lastId = from - 1;
+        while (true) {
+            //1.每次查询大于上一页最后一个id的数据,避免深分页
+            List<Long> ids = shopService.listObjs(new QueryWrapper<Shop>()
+                    .select("id")
+                    .gt("id", lastId).le("id", to)
+                    .orderByAsc("id")
+                    .last("LIMIT " + pageSize), o -> Long.valueOf(o.toString()));
+            if (ids.isEmpty()) {
+                return;
+            }
+            //2.先记录版本号再查询店铺,预热期间被更新的店铺不会被旧数据覆盖
+            List<String> keys = new ArrayList<>(ids.size());
+            for (Long id : ids) {
+                keys.add(RedisConstants.CACHE_SHOP_KEY + id);
+            }
+            Map<String, Long> versions = cacheClient.currentVersions(keys);
+            List<Shop> shops = shopService.listByIds(ids);
+            Map<String, Shop> values = new LinkedHashMap<>(shops.size() * 2);
+            for (Shop shop : shops) {
+                values.put(RedisConstants.CACHE_SHOP_KEY + shop.getId(), shop);
+            }
+            cacheClient.setWithLogicExpireBatch(values, versions, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, jitter);
+            loaded.addAndGet(shops.size());
+            lastId = ids.get(ids.size() - 1);
+        }
+    }
+}
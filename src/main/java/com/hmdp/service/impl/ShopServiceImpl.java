@@ -1,31 +1,53 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BloomFilter;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.PageCursor;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopNameIndex;
+import com.hmdp.utils.ShopSpatialIndex;
+import com.hmdp.utils.ShopSuggester;
 import com.hmdp.utils.SystemConstants;
-import io.lettuce.core.api.sync.RedisGeoCommands;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.geo.Circle;
 import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -36,6 +58,7 @@ import java.util.concurrent.TimeUnit;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
@@ -45,6 +68,201 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    //附近店铺的搜索半径,单位米
+    @Value("${hmdp.shop.geo.radius:5000}")
+    private double shopGeoRadius;
+
+    //附近店铺是否使用进程内的空间索引查询,关闭时查询redis GEO
+    @Value("${hmdp.shop.geo.index.enabled:true}")
+    private boolean spatialIndexEnabled;
+
+    @Resource
+    private ShopSpatialIndex shopSpatialIndex;
+
+    @Resource
+    private ShopNameIndex shopNameIndex;
+
+    @Resource
+    private ShopSuggester shopSuggester;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //布隆过滤器预计插入的店铺数量
+    @Value("${hmdp.cache.bloom.expected-insertions:100000}")
+    private long bloomExpectedInsertions;
+
+    //布隆过滤器的误判率
+    @Value("${hmdp.cache.bloom.fpp:0.01}")
+    private double bloomFpp;
+
+    //包含所有店铺id的布隆过滤器
+    private volatile BloomFilter shopBloomFilter;
+
+    //重建中的布隆过滤器,重建期间新增的店铺也要写入其中
+    private volatile BloomFilter buildingBloomFilter;
+
+    /**
+     * 启动时依次初始化,顺序不能改变
+     * 1.布隆过滤器最先构建,注册后店铺缓存的查询依赖它判断id是否存在
+     * 2.再全量构建空间索引和名称索引
+     * 3.最后订阅店铺变化消息,消息会同时更新布隆过滤器和各个索引,必须在它们都构建完成之后
+     */
+    @PostConstruct
+    private void init() {
+        //1.构建布隆过滤器,店铺缓存查询前先判断id是否可能存在
+        rebuildBloomFilter();
+        cacheClient.registerFilter(RedisConstants.CACHE_SHOP_KEY,
+                id -> shopBloomFilter.mightContain(Long.parseLong(id.toString())));
+        //2.构建空间索引和名称索引
+        rebuildSpatialIndex();
+        rebuildNameIndex();
+        //3.订阅店铺变化消息,收到后增量更新本节点的布隆过滤器、空间索引和名称索引
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> refreshShopIndexes(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(RedisConstants.SHOP_CHANGE_CHANNEL)
+        );
+    }
+
+    /**
+     * 从数据库全量重建空间索引,定期执行以补上丢失的变化消息
+     */
+    @Scheduled(initialDelayString = "${hmdp.shop.geo.index.rebuild-interval:600000}"
+            , fixedDelayString = "${hmdp.shop.geo.index.rebuild-interval:600000}")
+    public void rebuildSpatialIndex() {
+        if (!spatialIndexEnabled) {
+            return;
+        }
+        //1.只查询类型和坐标
+        List<Shop> shops = query().select("id", "type_id", "x", "y").list();
+        shops.removeIf(shop -> shop.getTypeId() == null || shop.getX() == null || shop.getY() == null);
+        //2.转为基本类型数组
+        int n = shops.size();
+        long[] typeIds = new long[n];
+        long[] shopIds = new long[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            Shop shop = shops.get(i);
+            typeIds[i] = shop.getTypeId();
+            shopIds[i] = shop.getId();
+            xs[i] = shop.getX();
+            ys[i] = shop.getY();
+        }
+        //3.替换旧的索引
+        shopSpatialIndex.replaceAll(typeIds, shopIds, xs, ys);
+        log.info("店铺空间索引重建完成, 店铺数量: {}", n);
+    }
+
+    /**
+     * 从数据库全量重建名称索引和前缀联想,定期执行以补上丢失的变化消息
+     */
+    @Scheduled(initialDelayString = "${hmdp.shop.search.rebuild-interval:600000}"
+            , fixedDelayString = "${hmdp.shop.search.rebuild-interval:600000}")
+    public void rebuildNameIndex() {
+        //1.只查询被索引的字段
+        List<Shop> shops = query().select("id", "name", "area", "address", "sold", "score").list();
+        int n = shops.size();
+        long[] ids = new long[n];
+        String[] names = new String[n];
+        String[] areas = new String[n];
+        String[] addresses = new String[n];
+        int[] sold = new int[n];
+        int[] scores = new int[n];
+        for (int i = 0; i < n; i++) {
+            Shop shop = shops.get(i);
+            ids[i] = shop.getId();
+            names[i] = shop.getName();
+            areas[i] = shop.getArea();
+            addresses[i] = shop.getAddress();
+            sold[i] = shop.getSold() == null ? 0 : shop.getSold();
+            scores[i] = shop.getScore() == null ? 0 : shop.getScore();
+        }
+        //2.替换旧的索引
+        shopNameIndex.replaceAll(ids, names, areas, addresses);
+        shopSuggester.replaceAll(ids, names, sold, scores);
+        log.info("店铺名称索引重建完成, 店铺数量: {}", n);
+    }
+
+    /**
+     * 根据数据库中的最新数据更新一个店铺在布隆过滤器、空间索引、名称索引和前缀联想中的内容
+     * @param id
+     */
+    private void refreshShopIndexes(Long id) {
+        Shop shop = getById(id);
+        if (shop == null) {
+            shopSpatialIndex.remove(id);
+            shopNameIndex.remove(id);
+            shopSuggester.remove(id);
+            return;
+        }
+        //新增的店铺加入本节点的布隆过滤器,否则在下次全量重建前会被判定为不存在
+        addToBloomFilter(id);
+        shopNameIndex.put(id, shop.getName(), shop.getArea(), shop.getAddress());
+        shopSuggester.put(id, shop.getName(), shop.getSold() == null ? 0 : shop.getSold()
+                , shop.getScore() == null ? 0 : shop.getScore());
+        if (!spatialIndexEnabled) {
+            return;
+        }
+        if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+            shopSpatialIndex.remove(id);
+            return;
+        }
+        shopSpatialIndex.put(shop.getTypeId(), id, shop.getX(), shop.getY());
+    }
+
+    /**
+     * 从数据库全量重建布隆过滤器,定期执行以清理已删除的店铺
+     */
+    @Scheduled(initialDelayString = "${hmdp.cache.bloom.rebuild-interval:3600000}"
+            , fixedDelayString = "${hmdp.cache.bloom.rebuild-interval:3600000}")
+    public synchronized void rebuildBloomFilter() {
+        //1.容量至少为当前店铺数量的2倍,给新增的店铺留出空间
+        BloomFilter filter = new BloomFilter(Math.max(bloomExpectedInsertions, count() * 2L), bloomFpp);
+        //2.先发布重建中的过滤器再查询id,查询之后新增的店铺由saveShop或变化消息写入
+        buildingBloomFilter = filter;
+        List<Object> ids = listObjs(new QueryWrapper<Shop>().select("id"));
+        for (Object id : ids) {
+            filter.put(((Number) id).longValue());
+        }
+        //3.替换旧的过滤器
+        shopBloomFilter = filter;
+        buildingBloomFilter = null;
+        log.info("店铺布隆过滤器重建完成, 店铺数量: {}", ids.size());
+    }
+
+    /**
+     * 把店铺id加入当前的布隆过滤器,正在重建时同时加入重建中的过滤器
+     * 调用前店铺已经写入数据库,先读取重建中的过滤器:读到null说明之后开始的重建一定能查询到这个店铺
+     * @param id
+     */
+    private void addToBloomFilter(Long id) {
+        BloomFilter building = buildingBloomFilter;
+        if (building != null) {
+            building.put(id);
+        }
+        BloomFilter filter = shopBloomFilter;
+        if (filter != null) {
+            filter.put(id);
+        }
+    }
+
+    /**
+     * 新增店铺
+     * @param shop
+     * @return
+     */
+    @Override
+    public Result saveShop(Shop shop) {
+        //1.写入数据库
+        save(shop);
+        //2.加入本节点的布隆过滤器,其他节点收到变化消息后加入
+        addToBloomFilter(shop.getId());
+        //3.加入所属类型的GEO,并通知各节点
+        syncShopGeo(null, shop);
+        return Result.ok(shop.getId());
+    }
+
     /**
      * 根据id查询Redis中的缓存
      * @param id
@@ -55,8 +273,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
         //缓存穿透
         //Shop shop = queryWithPassThrough(id);
-        cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class
-                , this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+//        Shop shop = cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class
+//                , this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         //互斥锁解决缓存击穿
 //        Shop shop = queryWithMutex(id);
@@ -64,6 +282,10 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //逻辑过期解决缓存击穿
 //        Shop shop = queryWithLogicExpire(id);
 
+        //过期前概率性地提前刷新,热点key几乎不会未命中
+//        Shop shop = cacheClient.queryWithRefreshAhead(RedisConstants.CACHE_SHOP_KEY, id, Shop.class
+//                , this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
         Shop shop = cacheClient.queryWithLogicExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class
                 , this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
@@ -123,80 +345,13 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
     /**
      * 封装 互斥锁 代码
+     * 同一节点内的并发请求由CacheClient合并,只有一个线程竞争互斥锁并重建缓存
      * @param id
      * @return
      */
     public Shop queryWithMutex(Long id) {
-        //1.从redis查询商铺缓存
-        //  cache:shop:id
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        //查询缓存信息是否存在
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        //2.判断是否存在
-        /**
-         * StrUtil.isBlank()方法返回false的情况有三种
-         * 1. 参数为null
-         * 2. 参数为"",即空串
-         * 3. 参数为制表换行符等（不考虑）
-         */
-        if (!StrUtil.isBlank(shopJson)) {
-            //3.存在,直接返回缓存信息
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-
-        //判断命中的是否为Null
-        //经过上面的过滤,剩下的只有两种情况：value=""或null
-        //如果value!=null,则value为"",此时缓存命中的就是空对象
-        if (shopJson != null) {
-            //返回错误信息
-            return null;
-        }
-
-        // *********************************
-        // 实现 互斥锁  缓存重建
-        // *********************************
-        // 4.1获取互斥锁
-        String lockKey = "lock:shop:" + id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2判断是否获取成功
-            if (!isLock) {
-                // 4.3失败,则休眠并重试
-                Thread.sleep(50);
-                //重试
-                return queryWithMutex(id);
-            }
-
-            // 4.4获取锁成功,再次检查Redis缓存是否存在,如果存在则无需重建缓存
-            //根据id查询数据库
-            shop = getById(id);
-
-            //5.不存在,返回错误
-            if (shop == null) {
-                //缓存击穿问题
-                //将空字符串写入redis,值设置为"",设置过期时间为2分钟
-                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                //返回错误信息
-                return null;
-            }
-
-            //6.存在,写入redis
-            //  设置过期时间为30分钟
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop)
-                    , RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            //7.释放Redis锁
-            unLock(lockKey);
-        }
-
-        //8.返回
-        return shop;
+        return cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, id, Shop.class
+                , this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     /**
@@ -252,80 +407,15 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return shop;
     }
 
-    // 实现一个线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
     /**
      * 逻辑过期 解决缓存击穿
+     * 过期后由全局共享的重建调度器异步重建
      * @param id
      * @return
      */
     public Shop queryWithLogicExpire(Long id) {
-        //1.从redis查询商铺缓存
-        //  cache:shop:id
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        //查询缓存信息是否存在
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        //2.判断是否命中缓存
-        if (StrUtil.isBlank(shopJson)) {
-            //3.未命中,返回空
-            return null;
-        }
-
-        //4.命中,需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-
-        //5.判断缓存是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            //未过期,直接返回店铺信息
-            return shop;
-        }
-        //已过期,需要缓存重建
-        //6.缓存重建
-        //获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        //判断获取锁是否成功
-        if (isLock) {
-            //成功,使用独立线程,实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    //重建缓存
-                    this.saveShopToRedis(id, 20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    //释放锁
-                    unLock(lockKey);
-                }
-            });
-        }
-        //返回过期商铺信息
-        return shop;
-    }
-
-
-
-    /**
-     * 获取锁
-     * @param key
-     * @return
-     */
-    private boolean tryLock(String key) {
-        //设置锁,过期时间为10秒
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
-    }
-
-    /**
-     * 释放锁
-     * @param key
-     */
-    private void unLock(String key) {
-        stringRedisTemplate.delete(key);
+        return cacheClient.queryWithLogicExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class
+                , this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     /**
@@ -358,46 +448,244 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (id == null) {
             return Result.fail("店铺id不能为空");
         }
+        //更新前的位置和类型,用于同步GEO
+        Shop old = getById(id);
+        if (old == null) {
+            return Result.fail("店铺不存在");
+        }
         //1.更新数据库
         updateById(shop);
 
-        //2.删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        //2.事务提交后把新数据写入缓存,并生成新的版本号
+        //  提交前写入的话,其他线程重建缓存时可能读到旧数据并带着新的版本号写回
+        String key = RedisConstants.CACHE_SHOP_KEY + id;
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                Shop updated = getById(id);
+                syncShopGeo(old, updated);
+                if (updated == null) {
+                    cacheClient.delete(key);
+                    return;
+                }
+                cacheClient.writeThrough(key, updated, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            }
+        });
         return Result.ok();
     }
 
-//    @Override
-//    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
-//        //1.判断是否需要根据坐标来查询
-//        if (x == null || y ==null) {
-//            //不需要坐标查询,按数据库查
-//            // 根据类型分页查询
-//            Page<Shop> page = query()
-//                    .eq("type_id", typeId)
-//                    .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
-//            // 返回数据
-//            return Result.ok(page.getRecords());
-//        }
-//
-//        //2.计算分页参数
-//        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE; //5,每次查5条
-//        int end = current * SystemConstants.DEFAULT_PAGE_SIZE; //结束
-//
-//        //3.查询redis,按照距离排序,分页. shopId, distance
-//        String key = RedisConstants.SHOP_GEO_KEY + typeId;
-//        stringRedisTemplate.opsForGeo() //GEOSEARCH bylocal x y byRadius 10 withDistance
-//                .search(
-//                        key,
-//                        GeoReference.fromCoordinate(x, y),
-//                        new Distance(5000),
-//                        RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().
-//                                limit(end)
-//                )
-//
-//        //4.解析出id
-//
-//        //5,根据id查询shop
-//
-//
-//    }
+    /**
+     * 同步店铺在GEO中的位置,类型变化时从旧类型的GEO中移除,并通知各节点更新空间索引和名称索引
+     * 同步失败只记录日志,不影响数据库的写入
+     * @param old       修改前的店铺,新增时为null
+     * @param current   修改后的店铺,已被删除时为null
+     */
+    private void syncShopGeo(Shop old, Shop current) {
+        if (old == null && current == null) {
+            return;
+        }
+        try {
+            if (old != null && old.getTypeId() != null
+                    && (current == null || !old.getTypeId().equals(current.getTypeId()))) {
+                stringRedisTemplate.opsForGeo().remove(RedisConstants.SHOP_GEO_KEY + old.getTypeId(), old.getId().toString());
+            }
+            if (current != null && current.getTypeId() != null && current.getX() != null && current.getY() != null) {
+                //GEOADD key 经度 纬度 member,位置没变时重复写入也没有影响
+                stringRedisTemplate.opsForGeo().add(RedisConstants.SHOP_GEO_KEY + current.getTypeId()
+                        , new Point(current.getX(), current.getY()), current.getId().toString());
+            }
+        } catch (RuntimeException e) {
+            log.error("同步店铺GEO失败, id: {}", current != null ? current.getId() : old.getId(), e);
+        }
+        //通知所有节点(包括本节点)更新空间索引和名称索引
+        Long id = current != null ? current.getId() : old.getId();
+        try {
+            stringRedisTemplate.convertAndSend(RedisConstants.SHOP_CHANGE_CHANNEL, id.toString());
+        } catch (RuntimeException e) {
+            //消息发送失败时先更新本节点,其他节点等待定期的全量重建
+            log.error("发送店铺变化消息失败, id: {}", id, e);
+            refreshShopIndexes(id);
+        }
+    }
+
+    /**
+     * 根据类型分页查询店铺,带坐标时按距离由近到远排序
+     * 1.从进程内的空间索引(或redis GEO)查出当前页店铺的id和距离
+     * 2.一次MGET批量查询店铺缓存,未命中的店铺一次性查询数据库
+     * @param typeId
+     * @param current
+     * @param x
+     * @param y
+     * @param cursor    不为null时使用游标分页,第一页传空串,只支持不带坐标的查询
+     * @return
+     */
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y, String cursor) {
+        //1.判断是否需要根据坐标来查询
+        if (x != null && y != null && cursor != null) {
+            //按距离排序的结果没有稳定的游标,只能按页码分页
+            return Result.fail("按距离查询不支持游标分页");
+        }
+        if ((x == null || y == null) && cursor != null) {
+            //按数据库游标分页查询,走 (type_id, id) 索引
+            return queryShopByCursor(typeId, cursor, SystemConstants.DEFAULT_PAGE_SIZE);
+        }
+        if (x == null || y == null) {
+            //不需要坐标查询,按数据库查
+            Page<Shop> page = query()
+                    .eq("type_id", typeId)
+                    .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+            return Result.ok(page.getRecords());
+        }
+
+        //2.计算分页参数
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
+
+        //3.按照距离排序,分页. shopId -> distance
+        //  空间索引在进程内完成,不需要访问redis;索引未加载时查询redis GEO
+        Map<Long, Double> nearby = spatialIndexEnabled && shopSpatialIndex.isLoaded()
+                ? searchSpatialIndex(typeId, x, y, from)
+                : searchGeo(typeId, x, y, from, end);
+        if (nearby.isEmpty()) {
+            //没有下一页了
+            return Result.ok(Collections.emptyList());
+        }
+        List<Long> ids = new ArrayList<>(nearby.keySet());
+
+        //4.根据id批量查询shop,结果与ids的顺序一致
+        List<Shop> cached = cacheClient.queryBatchWithLogicExpire(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class
+                , this::listByIdMap, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //5.设置距离,本地缓存中的对象是共享的,复制一份再修改
+        List<Shop> shops = new ArrayList<>(cached.size());
+        for (Shop shop : cached) {
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(nearby.get(shop.getId()));
+            shops.add(copy);
+        }
+        return Result.ok(shops);
+    }
+
+    /**
+     * 根据名称关键字分页查询店铺,查询内存中的倒排索引,不再 LIKE '%name%' 扫描全表
+     * @param name
+     * @param current
+     * @param cursor    不为null时使用游标分页,第一页传空串,只支持没有关键字的查询
+     * @return
+     */
+    @Override
+    public Result queryShopByName(String name, Integer current, String cursor) {
+        //1.没有关键字时按数据库分页查询
+        if (StrUtil.isBlank(name) && cursor != null) {
+            return queryShopByCursor(null, cursor, SystemConstants.MAX_PAGE_SIZE);
+        }
+        if (cursor != null) {
+            //按相关度排序的结果没有稳定的游标,只能按页码分页
+            return Result.fail("按关键字查询不支持游标分页");
+        }
+        if (StrUtil.isBlank(name)) {
+            Page<Shop> page = query().page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+            return Result.ok(page.getRecords());
+        }
+        //2.查询倒排索引,按相关度排序,分页
+        int from = (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        List<Long> ids = shopNameIndex.search(name, from, SystemConstants.MAX_PAGE_SIZE);
+        if (ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        //3.根据id批量查询shop,结果与ids的顺序一致
+        List<Shop> shops = cacheClient.queryBatchWithLogicExpire(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class
+                , this::listByIdMap, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        return Result.ok(shops);
+    }
+
+    /**
+     * 按id游标分页查询店铺
+     * WHERE type_id = ? AND id > ? ORDER BY id LIMIT size + 1,多查的一条用来判断是否还有下一页,不需要COUNT
+     * @param typeId    为null时查询全部类型
+     * @param cursor    上一页返回的游标,第一页为空串
+     * @param size
+     * @return
+     */
+    private Result queryShopByCursor(Integer typeId, String cursor, int size) {
+        PageCursor c = PageCursor.decode(cursor);
+        if (c == null && StrUtil.isNotBlank(cursor)) {
+            return Result.fail("游标无效");
+        }
+        List<Shop> shops = query()
+                .eq(typeId != null, "type_id", typeId)
+                .gt(c != null, "id", c == null ? null : c.getId())
+                .orderByAsc("id")
+                .last("LIMIT " + (size + 1))
+                .list();
+        return Result.ok(PageCursor.page(shops, size, shop -> new PageCursor(shop.getId(), shop.getId())));
+    }
+
+    /**
+     * 店铺名称的前缀联想,支持名称、全拼和拼音首字母,按销量、评分排序
+     * @param prefix
+     * @param size
+     * @return
+     */
+    @Override
+    public Result querySuggestions(String prefix, Integer size) {
+        return Result.ok(shopSuggester.suggest(prefix, size));
+    }
+
+    /**
+     * 查询进程内的空间索引
+     * @param typeId
+     * @param x
+     * @param y
+     * @param from
+     * @return 当前页的 店铺id -> 距离,按距离由近到远排列
+     */
+    private Map<Long, Double> searchSpatialIndex(Integer typeId, Double x, Double y, int from) {
+        Map<Long, Double> nearby = new LinkedHashMap<>();
+        for (ShopSpatialIndex.Neighbor neighbor : shopSpatialIndex.search(typeId, x, y, shopGeoRadius
+                , from, SystemConstants.DEFAULT_PAGE_SIZE)) {
+            nearby.put(neighbor.getShopId(), neighbor.getDistance());
+        }
+        return nearby;
+    }
+
+    /**
+     * 查询redis GEO,一次查出前end个店铺后截取 from ~ end 的部分
+     * GEORADIUS key x y radius m WITHDIST ASC COUNT end
+     * @param typeId
+     * @param x
+     * @param y
+     * @param from
+     * @param end
+     * @return 当前页的 店铺id -> 距离,按距离由近到远排列
+     */
+    private Map<Long, Double> searchGeo(Integer typeId, Double x, Double y, int from, int end) {
+        String key = RedisConstants.SHOP_GEO_KEY + typeId;
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().radius(
+                key,
+                new Circle(new Point(x, y), new Distance(shopGeoRadius, RedisGeoCommands.DistanceUnit.METERS)),
+                RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending().limit(end));
+        Map<Long, Double> nearby = new LinkedHashMap<>();
+        if (results == null) {
+            return nearby;
+        }
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> list = results.getContent();
+        for (int i = from; i < list.size(); i++) {
+            nearby.put(Long.valueOf(list.get(i).getContent().getName()), list.get(i).getDistance().getValue());
+        }
+        return nearby;
+    }
+
+    /**
+     * 根据多个id批量查询数据库
+     * @param ids
+     * @return id -> 店铺
+     */
+    private Map<Long, Shop> listByIdMap(Collection<Long> ids) {
+        Map<Long, Shop> map = new HashMap<>(ids.size() * 2);
+        for (Shop shop : listByIds(ids)) {
+            map.put(shop.getId(), shop);
+        }
+        return map;
+    }
 }
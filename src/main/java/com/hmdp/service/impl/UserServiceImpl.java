@@ -11,6 +11,7 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
@@ -48,6 +49,24 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 更新用户,成功后删除缓存的用户信息(笔记列表中的昵称和头像)
+     * 所有修改用户的操作都要经过这里,否则 cache:user: 中的旧昵称和头像要等到过期才会更新
+     * @param entity
+     * @return
+     */
+    @Override
+    public boolean updateById(User entity) {
+        boolean updated = super.updateById(entity);
+        if (updated) {
+            cacheClient.delete(CACHE_USER_KEY + entity.getId());
+        }
+        return updated;
+    }
+
     /**
      * 实现发送短信验证码
      * @param phone
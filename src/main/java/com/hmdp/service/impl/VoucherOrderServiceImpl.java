@@ -2,34 +2,51 @@ package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisHealthProbe;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillStreamRedis;
+import com.hmdp.utils.SoldOutRegistry;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -49,12 +66,39 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedisIdWorker redisIdWorker;
 
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillStreamRedis seckillStreamRedis;
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
     private RedissonClient redissonClient;
 
+    @Resource
+    private RedisHealthProbe redisHealthProbe;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    //是否批量消费订单消息,关闭时逐条处理
+    @Value("${hmdp.seckill.consumer.batch-enabled:true}")
+    private boolean batchEnabled;
+
+    //一次XREADGROUP读取的最大消息数量
+    @Value("${hmdp.seckill.consumer.batch-size:100}")
+    private int batchSize;
+
+    //读到第一条消息后,凑够一批最多等待的时间,单位毫秒
+    @Value("${hmdp.seckill.consumer.max-wait:50}")
+    private long maxWaitMillis;
+
     private static final DefaultRedisScript<Long> SECKKILL_SCRIPT;
     static {
         SECKKILL_SCRIPT = new DefaultRedisScript<>();
@@ -62,50 +106,138 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKKILL_SCRIPT.setResultType(Long.class);
     }
 
+    private static final DefaultRedisScript<Long> SECKILL_BUCKET_SCRIPT;
+    static {
+        SECKILL_BUCKET_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_BUCKET_SCRIPT.setLocation(new ClassPathResource("seckill_bucket.lua"));
+        SECKILL_BUCKET_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> RECLAIM_SCRIPT;
+    static {
+        RECLAIM_SCRIPT = new DefaultRedisScript<>();
+        RECLAIM_SCRIPT.setLocation(new ClassPathResource("reclaim.lua"));
+        RECLAIM_SCRIPT.setResultType(Long.class);
+    }
+
+    //每个节点消费每个分片的线程数,每个线程是该分片消费者组中一个独立的消费者
+    @Value("${hmdp.seckill.consumer.workers:2}")
+    private int workers;
+
+    //消息未确认超过多少毫秒认为原消费者已经死掉,转给其他消费者
+    @Value("${hmdp.seckill.consumer.reclaim-idle:30000}")
+    private long reclaimIdleMillis;
+
+    //检查死掉的消费者的间隔,单位毫秒
+    @Value("${hmdp.seckill.consumer.reclaim-interval:10000}")
+    private long reclaimIntervalMillis;
+
+    //消费者空闲超过多少毫秒且没有未确认消息时从消费者组中删除
+    @Value("${hmdp.seckill.consumer.dead-consumer-idle:3600000}")
+    private long deadConsumerIdleMillis;
+
+    //一条消息处理失败多少次后转入死信stream并确认
+    @Value("${hmdp.seckill.consumer.max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${spring.application.name:hmdp}")
+    private String applicationName;
+
     // 创建阻塞队列
 //    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 *1024);
-    //  为从阻塞队列中取出任务,创建线程池
-    private ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    //  为从消息队列中取出任务,创建线程池
+    private ExecutorService SECKILL_ORDER_EXECUTOR;
 
     @PostConstruct  //在当前类初始化完毕后执行
     private void init() {
         //因此VoucherOrderServiceImpl初始化完毕后就会执行VoucherOrderHandler
         //然后run方法就会执行
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        //消费者名称在节点(进程)内和节点间都唯一: 应用名-pid@主机名-线程序号
+        //每个分片的stream都有自己的消费者组,每个分片启动workers个线程消费
+        String node = applicationName + "-" + ManagementFactory.getRuntimeMXBean().getName();
+        int shards = seckillKeys.getShards();
+        SECKILL_ORDER_EXECUTOR = Executors.newFixedThreadPool(workers * shards);
+        for (int shard = 0; shard < shards; shard++) {
+            for (int i = 0; i < workers; i++) {
+                SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler(seckillKeys.streamKey(shard)
+                        , seckillKeys.deadLetterKey(shard), node + "-" + i));
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        SECKILL_ORDER_EXECUTOR.shutdownNow();
     }
 
     //  获取消息队列中的信息
     private class VoucherOrderHandler implements Runnable {
 
-        String queueName = "stream.orders";
+        //消费的分片stream
+        final String queueName;
+        //分片的死信stream
+        final String deadLetterName;
+        String groupName = RedisConstants.SECKILL_ORDER_GROUP;
+        //当前线程在消费者组中的名称
+        final String consumerName;
+        //下一次检查死掉的消费者的时间
+        long nextReclaimTime;
+        //消费者专用的连接,阻塞读取不占用业务的连接池
+        final StringRedisTemplate streamRedisTemplate = seckillStreamRedis.getTemplate();
+        //消息id -> 处理失败的次数,只记录当前消费者的失败,消息被其他消费者接管后重新计数
+        final Map<RecordId, Integer> failures = new LinkedHashMap<RecordId, Integer>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<RecordId, Integer> eldest) {
+                return size() > 10000;
+            }
+        };
+
+        VoucherOrderHandler(String queueName, String deadLetterName, String consumerName) {
+            this.queueName = queueName;
+            this.deadLetterName = deadLetterName;
+            this.consumerName = consumerName;
+        }
+
         @Override
         public void run() {
-            while (true) {
+            //0.确保stream和消费者组已经创建
+            while (!createGroupIfAbsent()) {
                 try {
-                    //1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STEAMS streams.order >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            while (!Thread.currentThread().isInterrupted()) {
+                //redis不可用时暂停消费,等待恢复
+                if (!redisHealthProbe.isAvailable()) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    continue;
+                }
+                try {
+                    //定期接管死掉的消费者手中的消息,并处理自己的pending-list
+                    if (System.currentTimeMillis() >= nextReclaimTime) {
+                        nextReclaimTime = System.currentTimeMillis() + reclaimIntervalMillis;
+                        reclaim();
+                        handlePendingList();
+                    }
+                    //1.获取消息队列中的订单信息 XREADGROUP GROUP g1 consumer COUNT n BLOCK 2000 STREAMS stream.orders:{分片} >
+                    List<MapRecord<String, Object, Object>> list = readBatch();
 
                     //2.判断消息获取是否成功
-                    if (list == null || list.isEmpty()) {
+                    if (list.isEmpty()) {
                         //2.1如果获取失败,说明没有消息,继续下一次循环
                         continue;
                     }
 
-                    //2.2如果获取成功，可以下单
-                    //  解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-
-                    //3.创建订单
-                    handleVoucherOrder(voucherOrder);
-
-                    //4.ACK确认   SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    //2.2如果获取成功，可以下单,下单后ACK确认
+                    handleRecords(list);
                 } catch (Exception e) {
                     log.error("处理订单异常", e);
                     handlePendingList();
@@ -113,40 +245,208 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             }
         }
 
+        /**
+         * 创建stream和消费者组 XGROUP CREATE stream.orders:{分片} g1 0 MKSTREAM
+         * @return 是否已经存在或创建成功
+         */
+        private boolean createGroupIfAbsent() {
+            try {
+                streamRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XGROUP",
+                        "CREATE".getBytes(StandardCharsets.UTF_8),
+                        queueName.getBytes(StandardCharsets.UTF_8),
+                        groupName.getBytes(StandardCharsets.UTF_8),
+                        "0".getBytes(StandardCharsets.UTF_8),
+                        "MKSTREAM".getBytes(StandardCharsets.UTF_8)));
+                log.info("创建消费者组, stream: {}, group: {}", queueName, groupName);
+                return true;
+            } catch (RuntimeException e) {
+                //组已经存在
+                for (Throwable t = e; t != null; t = t.getCause()) {
+                    if (t.getMessage() != null && t.getMessage().contains("BUSYGROUP")) {
+                        return true;
+                    }
+                }
+                log.error("创建消费者组失败, stream: {}", queueName, e);
+                return false;
+            }
+        }
+
+        /**
+         * 把死掉的消费者手中长时间未确认的消息转给当前消费者
+         */
+        private void reclaim() {
+            Long claimed = streamRedisTemplate.execute(
+                    RECLAIM_SCRIPT,
+                    Collections.singletonList(queueName),
+                    groupName, consumerName, String.valueOf(reclaimIdleMillis),
+                    String.valueOf(batchSize), String.valueOf(deadConsumerIdleMillis)
+            );
+            if (claimed != null && claimed > 0) {
+                log.info("接管了已失效消费者的消息, stream: {}, 数量: {}", queueName, claimed);
+            }
+        }
+
+        /**
+         * 读取一批消息,读到第一条后在max-wait内继续读取,尽量凑够batch-size条
+         * @return
+         */
+        private List<MapRecord<String, Object, Object>> readBatch() {
+            int count = batchEnabled ? batchSize : 1;
+            List<MapRecord<String, Object, Object>> list = read(count, SeckillStreamRedis.BLOCK_TIMEOUT);
+            if (list == null || list.isEmpty() || !batchEnabled) {
+                return list == null ? Collections.emptyList() : list;
+            }
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(list);
+            long deadline = System.currentTimeMillis() + maxWaitMillis;
+            while (batch.size() < count) {
+                //BLOCK 0代表一直阻塞,剩余时间不足1毫秒时直接结束
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining < 1) {
+                    break;
+                }
+                List<MapRecord<String, Object, Object>> more = read(count - batch.size(), Duration.ofMillis(remaining));
+                if (more == null || more.isEmpty()) {
+                    break;
+                }
+                batch.addAll(more);
+            }
+            return batch;
+        }
+
+        private List<MapRecord<String, Object, Object>> read(int count, Duration block) {
+            return streamRedisTemplate.opsForStream().read(
+                    Consumer.from(groupName, consumerName),
+                    StreamReadOptions.empty().count(count).block(block),
+                    StreamOffset.create(queueName, ReadOffset.lastConsumed())
+            );
+        }
+
+        /**
+         * 创建订单并ACK确认
+         * 批量模式下一批订单在一个事务中写入,再用一次XACK确认整批消息
+         * 整批失败时(例如某条消息的数据有问题)逐条重试,不让一条坏消息卡住整个分片
+         * @param list
+         */
+        private void handleRecords(List<MapRecord<String, Object, Object>> list) {
+            if (batchEnabled && list.size() > 1) {
+                try {
+                    //  解析消息中的订单信息
+                    List<VoucherOrder> orders = new ArrayList<>(list.size());
+                    RecordId[] ids = new RecordId[list.size()];
+                    for (int i = 0; i < list.size(); i++) {
+                        orders.add(BeanUtil.fillBeanWithMap(list.get(i).getValue(), new VoucherOrder(), true));
+                        ids[i] = list.get(i).getId();
+                    }
+                    //3.批量创建订单,库存不足无法落库的订单转入死信
+                    deadLetterUnstocked(createVoucherOrders(orders));
+                    //4.一次ACK确认整批消息   XACK stream.orders:{分片} g1 id1 id2 ...
+                    streamRedisTemplate.opsForStream().acknowledge(queueName, groupName, ids);
+                    return;
+                } catch (RuntimeException e) {
+                    if (RedisHealthProbe.isUnavailable(e)) {
+                        throw e;
+                    }
+                    log.error("批量创建订单失败,逐条处理, stream: {}, 数量: {}", queueName, list.size(), e);
+                }
+            }
+            for (MapRecord<String, Object, Object> record : list) {
+                handleRecord(record);
+            }
+        }
+
+        /**
+         * 处理一条消息,失败时留在pending-list中等待下次重试,失败max-attempts次后转入死信并确认
+         * @param record
+         */
+        private void handleRecord(MapRecord<String, Object, Object> record) {
+            try {
+                //  解析消息中的订单信息
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+                //3.创建订单
+                if (batchEnabled) {
+                    deadLetterUnstocked(createVoucherOrders(Collections.singletonList(voucherOrder)));
+                } else {
+                    handleVoucherOrder(voucherOrder);
+                }
+            } catch (RuntimeException e) {
+                if (RedisHealthProbe.isUnavailable(e)) {
+                    throw e;
+                }
+                int attempts = failures.merge(record.getId(), 1, Integer::sum);
+                if (attempts < maxAttempts) {
+                    log.error("创建订单失败, stream: {}, id: {}, 第{}次", queueName, record.getId(), attempts, e);
+                    return;
+                }
+                log.error("创建订单失败{}次,转入死信, stream: {}, id: {}", attempts, queueName, record.getId(), e);
+                deadLetter(record.getValue(), record.getId().getValue(), e.toString());
+            }
+            failures.remove(record.getId());
+            //4.ACK确认   XACK stream.orders:{分片} g1 id
+            streamRedisTemplate.opsForStream().acknowledge(queueName, groupName, record.getId());
+        }
+
+        /**
+         * redis已经接受但数据库库存不足、无法落库的订单,记录到死信中,不直接丢弃
+         * @param orders
+         */
+        private void deadLetterUnstocked(List<VoucherOrder> orders) {
+            for (VoucherOrder order : orders) {
+                Map<Object, Object> values = new LinkedHashMap<>();
+                values.put("userId", order.getUserId().toString());
+                values.put("voucherId", order.getVoucherId().toString());
+                values.put("id", order.getId().toString());
+                deadLetter(values, "", "库存不足");
+            }
+        }
+
+        /**
+         * 把订单消息写入死信stream XADD stream.orders.dead:{分片} * ...
+         * @param values    原消息的内容
+         * @param sourceId  原消息的id
+         * @param reason    失败原因
+         */
+        private void deadLetter(Map<Object, Object> values, String sourceId, String reason) {
+            Map<String, String> fields = new LinkedHashMap<>();
+            values.forEach((k, v) -> fields.put(String.valueOf(k), String.valueOf(v)));
+            fields.put("sourceStream", queueName);
+            fields.put("sourceId", sourceId);
+            fields.put("reason", reason);
+            streamRedisTemplate.opsForStream().add(StreamRecords.mapBacked(fields).withStreamKey(deadLetterName));
+        }
+
+        /**
+         * 处理pending-list中的消息,从头到尾遍历一遍
+         * 每次从上一批最后一条消息之后继续读取,失败的消息留在pending-list中,等下一次(reclaim-interval之后)再重试,
+         * 不会反复读取同一批消息
+         */
         private void handlePendingList() {
+            String offset = "0";
             while (true) {
                 try {
-                    //1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 STEAMS streams.order 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
+                    //1.获取pending-list中的订单信息 XREADGROUP GROUP g1 consumer COUNT n STREAMS stream.orders:{分片} offset
+                    List<MapRecord<String, Object, Object>> list = streamRedisTemplate.opsForStream().read(
+                            Consumer.from(groupName, consumerName),
+                            StreamReadOptions.empty().count(batchEnabled ? batchSize : 1),
+                            StreamOffset.create(queueName, ReadOffset.from(offset))
                     );
 
                     //2.判断消息获取是否成功
                     if (list == null || list.isEmpty()) {
-                        //2.1如果获取失败,说明pending-list中没有异常消息,结束循环
+                        //2.1如果获取失败,说明pending-list中没有更多的消息,结束循环
                         break;
                     }
 
-                    //2.2如果pending-list中有消息
-                    //  解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-
-                    //3.创建订单
-                    handleVoucherOrder(voucherOrder);
-
-                    //4.ACK确认   SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    //2.2如果pending-list中有消息,下单后ACK确认
+                    handleRecords(list);
+                    offset = list.get(list.size() - 1).getId().getValue();
                 } catch (Exception e) {
                     log.error("处理pending-list异常", e);
-                    try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
+                    //redis不可用,等待恢复后再处理
+                    if (RedisHealthProbe.isUnavailable(e)) {
+                        redisHealthProbe.reportFailure(e);
                     }
+                    //其他异常也不在这里重试,等下一次检查时再处理
+                    break;
                 }
             }
         }
@@ -203,24 +503,167 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     private IVoucherOrderService proxy; //使用全局变量来获取代理对象
 
+    /**
+     * 批量创建订单,一批订单在一个事务中完成
+     * 1.一次查询过滤掉已经存在的订单(消息被重复投递)
+     * 2.按优惠券分组,每种优惠券只执行一次 stock = stock - k
+     * 3.一条多行INSERT写入所有订单
+     * 一人一单已经由lua脚本保证,同一用户同一优惠券只会有一条消息,所以不再需要按用户加锁,
+     * 消息被接管后重复处理时,由 (user_id, voucher_id) 唯一索引兜底:INSERT IGNORE 写入的行数不足时说明有并发写入的重复订单,
+     * 回滚整个事务(否则已经多扣了库存),由调用方逐条重试,重试时查询会过滤掉已经存在的订单
+     * @param orders
+     * @return 数据库库存不足、没有落库的订单
+     */
+    private List<VoucherOrder> createVoucherOrders(List<VoucherOrder> orders) {
+        return transactionTemplate.execute(status -> {
+            //1.去重,同一批中重复的消息只保留一条
+            Map<String, VoucherOrder> unique = new LinkedHashMap<>();
+            Set<Long> userIds = new HashSet<>();
+            Set<Long> voucherIds = new HashSet<>();
+            for (VoucherOrder order : orders) {
+                unique.putIfAbsent(order.getUserId() + ":" + order.getVoucherId(), order);
+                userIds.add(order.getUserId());
+                voucherIds.add(order.getVoucherId());
+            }
+            //  一次查询出已经存在的订单
+            List<VoucherOrder> existing = query().select("user_id", "voucher_id")
+                    .in("user_id", userIds).in("voucher_id", voucherIds).list();
+            for (VoucherOrder order : existing) {
+                if (unique.remove(order.getUserId() + ":" + order.getVoucherId()) != null) {
+                    log.error("用户已经购买过一次, userId: {}, voucherId: {}", order.getUserId(), order.getVoucherId());
+                }
+            }
+            if (unique.isEmpty()) {
+                return Collections.<VoucherOrder>emptyList();
+            }
+
+            //2.按优惠券分组扣减库存
+            Map<Long, List<VoucherOrder>> byVoucher = unique.values().stream()
+                    .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+            List<VoucherOrder> toSave = new ArrayList<>(unique.size());
+            List<VoucherOrder> unstocked = new ArrayList<>();
+            for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+                List<VoucherOrder> group = entry.getValue();
+                int deducted = deductStock(entry.getKey(), group.size());
+                if (deducted < group.size()) {
+                    log.error("库存不足, voucherId: {}, 无法落库的订单: {}", entry.getKey(), group.subList(deducted, group.size()));
+                    unstocked.addAll(group.subList(deducted, group.size()));
+                }
+                toSave.addAll(group.subList(0, deducted));
+            }
+
+            //3.一条多行INSERT IGNORE写入所有订单
+            if (!toSave.isEmpty()) {
+                int inserted = getBaseMapper().insertBatch(toSave);
+                if (inserted < toSave.size()) {
+                    throw new IllegalStateException("存在并发写入的重复订单, 应写入: " + toSave.size() + ", 实际写入: " + inserted);
+                }
+            }
+            return unstocked;
+        });
+    }
+
+    /**
+     * 扣减库存 stock = stock - k,库存不足k时只扣减剩余的库存
+     * @param voucherId
+     * @param k
+     * @return 实际扣减的数量
+     */
+    private int deductStock(Long voucherId, int k) {
+        while (k > 0) {
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", k)
+                    .update();
+            if (success) {
+                return k;
+            }
+            //redis中已经校验过库存,正常情况下不会走到这里
+            SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+            k = voucher == null || voucher.getStock() == null ? 0 : Math.min(k, voucher.getStock());
+        }
+        return 0;
+    }
+
+    /**
+     * 库存分段模式下判断购买资格并发送订单消息
+     * 订单key与各个分段不在同一个slot,不能在扣减分段库存的脚本中校验一人一单,
+     * 所以先SADD订单key占住资格,再从用户对应的分段开始依次尝试扣减,所有分段都没有库存时撤销资格
+     * 执行脚本出现异常时无法确定是否已经扣减,保留资格,宁可少卖也不重复下单
+     * @param voucherId
+     * @param userId
+     * @param orderId
+     * @return 0成功 1库存不足 2重复下单
+     */
+    private Long seckillByBucket(Long voucherId, Long userId, long orderId) {
+        //1.占住一人一单的资格 SADD orderKey userId,返回0说明已经下过单
+        String orderKey = seckillKeys.orderKey(voucherId);
+        Long added = stringRedisTemplate.opsForSet().add(orderKey, userId.toString());
+        if (added == null || added == 0) {
+            return 2L;
+        }
+        //2.从用户对应的分段开始,库存不足(返回1)时依次尝试其他分段
+        int buckets = seckillKeys.getBuckets();
+        int home = seckillKeys.bucketOf(userId);
+        for (int i = 0; i < buckets; i++) {
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_BUCKET_SCRIPT,
+                    seckillKeys.bucketKeys(voucherId, (home + i) % buckets),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId)
+            );
+            if (result != null && result == 0) {
+                return 0L;
+            }
+        }
+        //3.所有分段都没有库存,撤销资格
+        stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+        return 1L;
+    }
+
     @Override
     public Result seckillVoucher(Long voucherId) {
+        //已经售罄的优惠券在本地直接拒绝,不访问redis
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        //redis不可用时无法判断库存和一人一单,直接拒绝,不让请求阻塞
+        if (!redisHealthProbe.isAvailable()) {
+            return Result.fail("系统繁忙,请稍后再试");
+        }
         //获取用户
         Long userId = UserHolder.getUser().getId();
-        //获取订单id
-        long orderId = redisIdWorker.nextId("order");
-        //1.执行lua脚本
-        //判断购买资格，发送订单信息到消息队列
-        Long result = stringRedisTemplate.execute(
-                SECKKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        );
+        Long result;
+        long orderId;
+        try {
+            //获取订单id
+            orderId = redisIdWorker.nextId("order");
+            //1.执行lua脚本
+            //判断购买资格，发送订单信息到消息队列
+            if (seckillKeys.getBuckets() == 1) {
+                result = stringRedisTemplate.execute(
+                        SECKKILL_SCRIPT,
+                        seckillKeys.seckillKeys(voucherId),
+                        voucherId.toString(), userId.toString(), String.valueOf(orderId)
+                );
+            } else {
+                result = seckillByBucket(voucherId, userId, orderId);
+            }
+        } catch (RuntimeException e) {
+            if (!RedisHealthProbe.isUnavailable(e)) {
+                throw e;
+            }
+            redisHealthProbe.reportFailure(e);
+            return Result.fail("系统繁忙,请稍后再试");
+        }
 
         //2.判断结果是否为0
         int r = result.intValue();
         if (r != 0) {
-            //2.1 不为0,代表没有购买资格
+            //2.1 不为0,代表没有购买资格,库存不足时标记售罄并通知所有节点
+            if (r == 1) {
+                soldOutRegistry.markSoldOut(voucherId);
+            }
             return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
         }
 
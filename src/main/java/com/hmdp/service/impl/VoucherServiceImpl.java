@@ -1,19 +1,29 @@
 package com.hmdp.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillStockDTO;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisHealthProbe;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SoldOutRegistry;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * <p>
@@ -23,6 +33,7 @@ import java.util.List;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
@@ -32,6 +43,65 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    /**
+     * 启动时把分片之前的秒杀key迁移到分片的key
+     * 旧的 seckill:stock:优惠券id 和 seckill:order:优惠券id 与新key不在同一个slot,不能用一个脚本完成,逐个优惠券迁移:
+     * 1.已下单用户SADD到新key后删除旧key,重复执行没有影响
+     * 2.库存通过GETSET取走旧值并置0,多个节点同时启动时只有一个节点取到库存,再按分段INCRBY到新key
+     * 迁移必须在没有进行中的秒杀、旧版本节点全部下线后进行
+     */
+    @PostConstruct
+    private void migrateLegacySeckillKeys() {
+        List<Long> voucherIds;
+        try {
+            voucherIds = seckillVoucherService.listObjs(new QueryWrapper<SeckillVoucher>().select("voucher_id")
+                    , o -> Long.valueOf(o.toString()));
+            for (Long voucherId : voucherIds) {
+                migrateLegacySeckillKeys(voucherId);
+            }
+        } catch (RuntimeException e) {
+            if (!RedisHealthProbe.isUnavailable(e)) {
+                throw e;
+            }
+            //redis不可用时秒杀本来就无法进行,下次启动时再迁移
+            log.warn("redis不可用,跳过秒杀key的迁移", e);
+        }
+    }
+
+    private void migrateLegacySeckillKeys(Long voucherId) {
+        //1.已下单用户,先于库存迁移,避免迁移期间出现可以重复下单的窗口
+        String legacyOrderKey = seckillKeys.legacyOrderKey(voucherId);
+        Set<String> users = stringRedisTemplate.opsForSet().members(legacyOrderKey);
+        if (users != null && !users.isEmpty()) {
+            stringRedisTemplate.opsForSet().add(seckillKeys.orderKey(voucherId), users.toArray(new String[0]));
+            stringRedisTemplate.delete(legacyOrderKey);
+            log.info("迁移秒杀券已下单用户, voucherId: {}, 数量: {}", voucherId, users.size());
+        }
+        //2.库存
+        String legacyStockKey = seckillKeys.legacyStockKey(voucherId);
+        String stock = stringRedisTemplate.opsForValue().getAndSet(legacyStockKey, "0");
+        if (stock == null) {
+            //没有旧数据,GETSET创建的key直接删除
+            stringRedisTemplate.delete(legacyStockKey);
+            return;
+        }
+        int amount = Integer.parseInt(stock);
+        //在写入新key之前记录,迁移中途失败时可以据此手动补回
+        log.info("迁移秒杀券库存, voucherId: {}, 库存: {}", voucherId, amount);
+        int[] parts = seckillKeys.split(Math.max(amount, 0));
+        for (int b = 0; b < parts.length; b++) {
+            stringRedisTemplate.opsForValue().increment(seckillKeys.stockKey(voucherId, b), parts[b]);
+        }
+        stringRedisTemplate.delete(legacyStockKey);
+        soldOutRegistry.clear(voucherId);
+    }
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -53,9 +123,72 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
-        // 保存秒杀库存到Redis中
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId()
-                , voucher.getStock().toString());
+        // 保存秒杀库存到Redis中,开启库存分段时拆分到各个分段
+        int[] parts = seckillKeys.split(voucher.getStock());
+        for (int b = 0; b < parts.length; b++) {
+            stringRedisTemplate.opsForValue().set(seckillKeys.stockKey(voucher.getId(), b)
+                    , String.valueOf(parts[b]));
+        }
+        // 清除各节点可能残留的售罄标记
+        soldOutRegistry.clear(voucher.getId());
 
     }
+
+    @Override
+    @Transactional
+    public Result restockSeckillVoucher(Long voucherId, Integer amount) {
+        if (amount == null || amount <= 0) {
+            return Result.fail("补充的库存必须大于0");
+        }
+        // 1.增加数据库库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + amount)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在");
+        }
+        // 2.事务提交后再增加redis库存,事务回滚时redis中不会多出数据库没有的库存
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                // 2.1.开启库存分段时拆分到各个分段
+                int[] parts = seckillKeys.split(amount);
+                for (int b = 0; b < parts.length; b++) {
+                    if (parts[b] > 0) {
+                        stringRedisTemplate.opsForValue().increment(seckillKeys.stockKey(voucherId, b), parts[b]);
+                    }
+                }
+                // 2.2.清除所有节点的售罄标记
+                soldOutRegistry.clear(voucherId);
+            }
+        });
+        return Result.ok();
+    }
+
+    @Override
+    public Result querySeckillStock(Long voucherId) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null) {
+            return Result.fail("秒杀券不存在");
+        }
+        // 1.一次MGET查询所有分段的库存
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(seckillKeys.stockKeys(voucherId));
+        // 2.汇总
+        List<Integer> buckets = new ArrayList<>(values == null ? 0 : values.size());
+        int total = 0;
+        if (values != null) {
+            for (String value : values) {
+                int stock = value == null ? 0 : Integer.parseInt(value);
+                buckets.add(stock);
+                total += stock;
+            }
+        }
+        SeckillStockDTO dto = new SeckillStockDTO();
+        dto.setVoucherId(voucherId);
+        dto.setStock(total);
+        dto.setBuckets(buckets);
+        dto.setDbStock(voucher.getStock());
+        return Result.ok(dto);
+    }
 }
@@ -0,0 +1,531 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * 紧凑的二进制编解码器
+ * 按字段名排序后依次写入字段值,不写字段名,数据头部带有格式版本和字段结构的哈希值,
+ * 实体类字段发生变化后旧数据会被识别为不匹配,按未命中处理
+ * 普通数据格式:
+ * <pre>
+ * | magic(1) | 格式版本1(1) | flags(1) | 结构哈希(4) | [原始长度(4)] | 字段数据 |
+ * </pre>
+ * 逻辑过期数据格式,定长头部在前,判断是否过期和是否正在重建时不需要解析字段数据:
+ * <pre>
+ * | magic(1) | 格式版本2(1) | flags(1) | 重建状态(1) | 逻辑过期时间(8) | 数据版本(8) | 结构哈希(4) | [原始长度(4)] | 字段数据 |
+ * </pre>
+ * 重建状态为重建中时,逻辑过期时间字段保存的是标记重建的时间(数据已经过期,标记时间同样早于当前时间)
+ * 字段数据超过阈值时使用LZ4压缩
+ */
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+
+    public static final String NAME = "binary";
+
+    //json不会以这个字节开头,用于区分新旧格式
+    static final byte MAGIC = (byte) 0xCA;
+    static final byte FORMAT_VERSION = 1;
+    static final byte FORMAT_VERSION_LOGIC = 2;
+
+    //逻辑过期数据中重建状态所在的位置,可以用SETRANGE单独修改
+    public static final int REBUILD_STATE_OFFSET = 3;
+    //逻辑过期数据中过期时间、数据版本、结构哈希所在的位置
+    public static final int EXPIRE_TIME_OFFSET = 4;
+    public static final int VERSION_OFFSET = 12;
+    public static final int SCHEMA_HASH_OFFSET = 20;
+    //逻辑过期数据定长头部的长度
+    private static final int LOGIC_HEADER_LENGTH = 24;
+
+    static final byte FLAG_COMPRESSED = 1;
+    static final byte FLAG_LOGIC = 1 << 1;
+
+    //字段类型
+    private static final byte KIND_LONG = 1;
+    private static final byte KIND_INT = 2;
+    private static final byte KIND_DOUBLE = 3;
+    private static final byte KIND_FLOAT = 4;
+    private static final byte KIND_BOOLEAN = 5;
+    private static final byte KIND_STRING = 6;
+    private static final byte KIND_DATE_TIME = 7;
+    //其他类型以json字符串的形式写入
+    private static final byte KIND_JSON = 8;
+
+    private static final LZ4Factory LZ4 = LZ4Factory.fastestInstance();
+
+    //各个类的字段结构
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    //字段数据超过该字节数时压缩
+    private final int compressThreshold;
+
+    public BinaryCacheCodec(@Value("${hmdp.cache.codec.compress-threshold:512}") int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        return bytes[0] == MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return write(value);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        Header header = readHeader(buffer, type);
+        if (header == null || header.logic) {
+            return null;
+        }
+        return read(buffer, header, type);
+    }
+
+    @Override
+    public byte[] encodeLogic(RedisData redisData) {
+        Object value = redisData.getData();
+        Schema schema = schemaOf(value.getClass());
+        byte[] raw = writePayload(schema, value);
+        //没有指定版本时,使用数据内容的校验和作为版本,数据没变时版本也不变
+        long version = redisData.getVersion() != null ? redisData.getVersion() : checksum(raw);
+        return writeLogic(schema, raw, redisData.getExpireTime(), version);
+    }
+
+    @Override
+    public RedisData decodeLogic(byte[] bytes, Class<?> type) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        Header header = readHeader(buffer, type);
+        if (header == null || !header.logic) {
+            return null;
+        }
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(toDateTime(header.expireMillis));
+        redisData.setVersion(header.version);
+        redisData.setData(read(buffer, header, type));
+        return redisData;
+    }
+
+    @Override
+    public CacheHeader readHeader(byte[] bytes) {
+        if (bytes.length < LOGIC_HEADER_LENGTH || bytes[0] != MAGIC || bytes[1] != FORMAT_VERSION_LOGIC) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, REBUILD_STATE_OFFSET, LOGIC_HEADER_LENGTH - REBUILD_STATE_OFFSET);
+        CacheHeader header = new CacheHeader();
+        header.setRebuildState(buffer.get());
+        header.setExpireTime(toDateTime(buffer.getLong()));
+        header.setVersion(buffer.getLong());
+        return header;
+    }
+
+    /**
+     * 编码普通数据
+     * @param value
+     * @return
+     */
+    private byte[] write(Object value) {
+        Schema schema = schemaOf(value.getClass());
+        byte[] payload = writePayload(schema, value);
+        int rawLength = payload.length;
+        byte[] compressed = compress(payload);
+
+        Output out = new Output((compressed == null ? rawLength : compressed.length) + 12);
+        out.writeByte(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        out.writeByte(compressed == null ? 0 : FLAG_COMPRESSED);
+        out.writeInt(schema.hash);
+        writeBody(out, payload, compressed);
+        return out.toByteArray();
+    }
+
+    /**
+     * 编码逻辑过期数据,定长头部在前
+     * @param schema
+     * @param payload
+     * @param expireTime
+     * @param version
+     * @return
+     */
+    private byte[] writeLogic(Schema schema, byte[] payload, LocalDateTime expireTime, long version) {
+        byte[] compressed = compress(payload);
+
+        Output out = new Output((compressed == null ? payload.length : compressed.length) + LOGIC_HEADER_LENGTH + 4);
+        out.writeByte(MAGIC);
+        out.writeByte(FORMAT_VERSION_LOGIC);
+        out.writeByte(compressed == null ? FLAG_LOGIC : (byte) (FLAG_LOGIC | FLAG_COMPRESSED));
+        out.writeByte(CacheHeader.STATE_NORMAL);
+        out.writeLong(expireTime.toInstant(ZoneOffset.UTC).toEpochMilli());
+        out.writeLong(version);
+        out.writeInt(schema.hash);
+        writeBody(out, payload, compressed);
+        return out.toByteArray();
+    }
+
+    private static byte[] writePayload(Schema schema, Object value) {
+        Output body = new Output(128);
+        schema.write(value, body);
+        return body.toByteArray();
+    }
+
+    /**
+     * 超过阈值时压缩
+     * @param payload
+     * @return 压缩后没有变小或者不需要压缩时返回null
+     */
+    private byte[] compress(byte[] payload) {
+        if (payload.length < compressThreshold) {
+            return null;
+        }
+        LZ4Compressor compressor = LZ4.fastCompressor();
+        byte[] compressed = compressor.compress(payload);
+        return compressed.length < payload.length ? compressed : null;
+    }
+
+    private static void writeBody(Output out, byte[] payload, byte[] compressed) {
+        if (compressed == null) {
+            out.writeBytes(payload, 0, payload.length);
+            return;
+        }
+        out.writeInt(payload.length);
+        out.writeBytes(compressed, 0, compressed.length);
+    }
+
+    private static long checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return crc.getValue();
+    }
+
+    /**
+     * 读取头部,格式版本或字段结构与type不匹配时返回null
+     */
+    private Header readHeader(ByteBuffer buffer, Class<?> type) {
+        //按每种格式完整的头部长度检查,被截断的数据直接视为无法解码
+        if (buffer.remaining() < 3 || buffer.get() != MAGIC) {
+            return null;
+        }
+        byte formatVersion = buffer.get();
+        byte flags = buffer.get();
+        Header header = new Header();
+        header.logic = (flags & FLAG_LOGIC) != 0;
+        int compressedLength = (flags & FLAG_COMPRESSED) != 0 ? 4 : 0;
+        if (formatVersion == FORMAT_VERSION_LOGIC) {
+            if (buffer.remaining() < LOGIC_HEADER_LENGTH - 3 + compressedLength) {
+                return null;
+            }
+            //跳过重建状态
+            buffer.get();
+            header.expireMillis = buffer.getLong();
+            header.version = buffer.getLong();
+            if (buffer.getInt() != schemaOf(type).hash) {
+                return null;
+            }
+        } else if (formatVersion == FORMAT_VERSION) {
+            if (buffer.remaining() < 4 + (header.logic ? 8 : 0) + compressedLength) {
+                return null;
+            }
+            if (buffer.getInt() != schemaOf(type).hash) {
+                return null;
+            }
+            //兼容旧的逻辑过期格式,过期时间在结构哈希之后
+            if (header.logic) {
+                header.expireMillis = buffer.getLong();
+            }
+        } else {
+            return null;
+        }
+        header.rawLength = (flags & FLAG_COMPRESSED) != 0 ? buffer.getInt() : -1;
+        return header;
+    }
+
+    private <T> T read(ByteBuffer buffer, Header header, Class<T> type) {
+        if (header.rawLength >= 0) {
+            //解压
+            LZ4FastDecompressor decompressor = LZ4.fastDecompressor();
+            byte[] raw = decompressor.decompress(buffer.array(), buffer.position(), header.rawLength);
+            buffer = ByteBuffer.wrap(raw);
+        }
+        return type.cast(schemaOf(type).read(buffer));
+    }
+
+    private Schema schemaOf(Class<?> type) {
+        return schemas.computeIfAbsent(type, Schema::new);
+    }
+
+    private static LocalDateTime toDateTime(long epochMillis) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(epochMillis, 1000L)
+                , (int) Math.floorMod(epochMillis, 1000L) * 1_000_000, ZoneOffset.UTC);
+    }
+
+    private static class Header {
+        boolean logic;
+        long expireMillis;
+        long version;
+        //压缩前的长度,未压缩时为-1
+        int rawLength;
+    }
+
+    /**
+     * 一个类的字段结构,字段按名称排序
+     */
+    private static class Schema {
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final byte[] kinds;
+        private final int hash;
+
+        Schema(Class<?> type) {
+            try {
+                this.constructor = type.getDeclaredConstructor();
+                this.constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException("缓存类型缺少无参构造函数: " + type.getName(), e);
+            }
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    list.add(field);
+                }
+            }
+            list.sort(Comparator.comparing(Field::getName));
+            this.fields = list.toArray(new Field[0]);
+            this.kinds = new byte[fields.length];
+            int h = 1;
+            for (int i = 0; i < fields.length; i++) {
+                kinds[i] = kindOf(fields[i].getType());
+                h = 31 * h + fields[i].getName().hashCode();
+                h = 31 * h + fields[i].getType().getName().hashCode();
+            }
+            this.hash = h;
+        }
+
+        void write(Object value, Output out) {
+            try {
+                Object[] values = new Object[fields.length];
+                //空值位图
+                byte[] nulls = new byte[(fields.length + 7) >>> 3];
+                for (int i = 0; i < fields.length; i++) {
+                    values[i] = fields[i].get(value);
+                    if (values[i] == null) {
+                        nulls[i >>> 3] |= 1 << (i & 7);
+                    }
+                }
+                out.writeBytes(nulls, 0, nulls.length);
+                for (int i = 0; i < fields.length; i++) {
+                    if (values[i] != null) {
+                        writeValue(kinds[i], values[i], out);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Object read(ByteBuffer in) {
+            try {
+                Object value = constructor.newInstance();
+                byte[] nulls = new byte[(fields.length + 7) >>> 3];
+                in.get(nulls);
+                for (int i = 0; i < fields.length; i++) {
+                    if ((nulls[i >>> 3] & (1 << (i & 7))) == 0) {
+                        fields[i].set(value, readValue(kinds[i], fields[i].getType(), in));
+                    }
+                }
+                return value;
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static byte kindOf(Class<?> type) {
+            if (type == Long.class || type == long.class) {
+                return KIND_LONG;
+            }
+            if (type == Integer.class || type == int.class) {
+                return KIND_INT;
+            }
+            if (type == Double.class || type == double.class) {
+                return KIND_DOUBLE;
+            }
+            if (type == Float.class || type == float.class) {
+                return KIND_FLOAT;
+            }
+            if (type == Boolean.class || type == boolean.class) {
+                return KIND_BOOLEAN;
+            }
+            if (type == String.class) {
+                return KIND_STRING;
+            }
+            if (type == LocalDateTime.class) {
+                return KIND_DATE_TIME;
+            }
+            return KIND_JSON;
+        }
+
+        private static void writeValue(byte kind, Object value, Output out) {
+            switch (kind) {
+                case KIND_LONG:
+                    out.writeVarLong((Long) value);
+                    break;
+                case KIND_INT:
+                    out.writeVarLong((Integer) value);
+                    break;
+                case KIND_DOUBLE:
+                    out.writeLong(Double.doubleToRawLongBits((Double) value));
+                    break;
+                case KIND_FLOAT:
+                    out.writeInt(Float.floatToRawIntBits((Float) value));
+                    break;
+                case KIND_BOOLEAN:
+                    out.writeByte((Boolean) value ? (byte) 1 : (byte) 0);
+                    break;
+                case KIND_STRING:
+                    out.writeString((String) value);
+                    break;
+                case KIND_DATE_TIME:
+                    LocalDateTime time = (LocalDateTime) value;
+                    out.writeVarLong(time.toEpochSecond(ZoneOffset.UTC));
+                    out.writeVarLong(time.getNano());
+                    break;
+                default:
+                    out.writeString(JSONUtil.toJsonStr(value));
+            }
+        }
+
+        private static Object readValue(byte kind, Class<?> type, ByteBuffer in) {
+            switch (kind) {
+                case KIND_LONG:
+                    return readVarLong(in);
+                case KIND_INT:
+                    return (int) readVarLong(in);
+                case KIND_DOUBLE:
+                    return Double.longBitsToDouble(in.getLong());
+                case KIND_FLOAT:
+                    return Float.intBitsToFloat(in.getInt());
+                case KIND_BOOLEAN:
+                    return in.get() != 0;
+                case KIND_STRING:
+                    return readString(in);
+                case KIND_DATE_TIME:
+                    long seconds = readVarLong(in);
+                    return LocalDateTime.ofEpochSecond(seconds, (int) readVarLong(in), ZoneOffset.UTC);
+                default:
+                    return JSONUtil.toBean(readString(in), type);
+            }
+        }
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long raw = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            raw |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        //zigzag解码
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = (int) readVarLong(in);
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    /**
+     * 可扩容的字节输出
+     */
+    static class Output {
+        private byte[] buf;
+        private int pos;
+
+        Output(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        void writeByte(byte b) {
+            ensure(1);
+            buf[pos++] = b;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            buf[pos++] = (byte) (v >>> 24);
+            buf[pos++] = (byte) (v >>> 16);
+            buf[pos++] = (byte) (v >>> 8);
+            buf[pos++] = (byte) v;
+        }
+
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        void writeVarLong(long v) {
+            //zigzag编码,让小的负数也只占很少的字节
+            long raw = (v << 1) ^ (v >> 63);
+            ensure(10);
+            while ((raw & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((raw & 0x7F) | 0x80);
+                raw >>>= 7;
+            }
+            buf[pos++] = (byte) raw;
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            writeBytes(bytes, 0, bytes.length);
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buf, pos, length);
+            pos += length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, pos + n));
+            }
+        }
+    }
+}
@@ -2,18 +2,52 @@ package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import io.lettuce.core.api.StatefulRedisConnection;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 @Slf4j
 @Component
@@ -21,23 +55,492 @@ public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
 
+    //Redis健康探测,不可用时进入降级模式
+    @Resource
+    private RedisHealthProbe redisHealthProbe;
+
+    //降级模式下全局同时查询数据库的数量上限
+    @Value("${hmdp.redis.degraded.db-concurrency:20}")
+    private int degradedDbConcurrency;
+
+    private Semaphore degradedDbPermits;
+
+    //降级期间没能写入redis的操作,key -> 操作,恢复后补做,同一个key只保留最后一次
+    private final Map<String, Runnable> pendingWrites = new ConcurrentHashMap<>();
+
+    //带版本号写入缓存的脚本
+    private static final DefaultRedisScript<Long> VERSIONED_SET_SCRIPT;
+    static {
+        VERSIONED_SET_SCRIPT = new DefaultRedisScript<>();
+        VERSIONED_SET_SCRIPT.setLocation(new ClassPathResource("versioned_set.lua"));
+        VERSIONED_SET_SCRIPT.setResultType(Long.class);
+    }
+
+    //修改数据头部重建状态的脚本
+    private static final DefaultRedisScript<Long> REBUILD_STATE_SCRIPT;
+    static {
+        REBUILD_STATE_SCRIPT = new DefaultRedisScript<>();
+        REBUILD_STATE_SCRIPT.setLocation(new ClassPathResource("rebuild_state.lua"));
+        REBUILD_STATE_SCRIPT.setResultType(Long.class);
+    }
+
     public CacheClient(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //以字节数组读写缓存值,编码格式由CacheCodec决定
+    @Resource
+    private RedisTemplate<String, byte[]> byteRedisTemplate;
+
+    //全局共享的缓存重建调度器
+    @Resource
+    private CacheRebuildScheduler cacheRebuildScheduler;
+
+    //异步查询使用的连接,命令发出后不阻塞调用线程
+    @Resource
+    private StatefulRedisConnection<String, byte[]> asyncRedisConnection;
+
+    //异步查询未命中时,查询数据库的线程数
+    @Value("${hmdp.cache.async.db-threads:10}")
+    private int asyncDbThreads;
+
+    //异步查询未命中时,等待查询数据库的最大任务数,超过后直接失败
+    @Value("${hmdp.cache.async.db-queue-capacity:200}")
+    private int asyncDbQueueCapacity;
+
+    //异步查询使用的数据库线程池
+    private ThreadPoolExecutor asyncDbExecutor;
+
+    //连续失败多少次后熔断
+    @Value("${hmdp.cache.breaker.failure-threshold:5}")
+    private int breakerFailureThreshold;
+
+    //熔断的时间,单位毫秒
+    @Value("${hmdp.cache.breaker.open-millis:10000}")
+    private long breakerOpenMillis;
+
+    //查询数据库的超时时间,单位毫秒
+    @Value("${hmdp.cache.breaker.timeout-millis:1000}")
+    private long breakerTimeoutMillis;
+
+    //每种keyPrefix同时查询数据库的数量上限
+    @Value("${hmdp.cache.breaker.max-concurrent:20}")
+    private int breakerMaxConcurrent;
+
+    //数据库不可用时,最近一次的数据还能使用多久,单位秒
+    @Value("${hmdp.cache.breaker.stale-grace:600}")
+    private long staleGrace;
+
+    //保留最近一次数据的最大数量
+    @Value("${hmdp.cache.breaker.stale-capacity:10000}")
+    private int staleCapacity;
+
+    //每种keyPrefix一个熔断器,keyPrefix -> 熔断器
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    //在熔断器保护下查询数据库的最大线程数,所有keyPrefix共用,超时的查询仍然占用线程直到真正结束
+    @Value("${hmdp.cache.breaker.db-threads:64}")
+    private int breakerDbThreads;
+
+    //在熔断器保护下查询数据库的线程池,每种keyPrefix的并发数由熔断器的舱壁限制,总数由线程数限制,线程用完时直接拒绝
+    private ThreadPoolExecutor dbExecutor;
+
+    //最近一次从redis或数据库得到的数据,数据库不可用时返回给调用方
+    private LocalCache staleCache;
+
+    //互斥锁查询时,等待其他节点重建缓存的最长时间,单位毫秒
+    @Value("${hmdp.cache.mutex.wait-millis:3000}")
+    private long mutexWaitMillis;
+
+    //所有可用的编解码器,读取时根据数据头部选择
+    @Resource
+    private List<CacheCodec> codecs;
+
+    //写入时使用的编解码器
+    @Value("${hmdp.cache.codec.type:binary}")
+    private String codecType;
+
+    private CacheCodec codec;
+
+    //是否开启本地缓存(L1)
+    @Value("${hmdp.cache.local.enabled:true}")
+    private boolean localEnabled;
+
+    //本地缓存最大容量
+    @Value("${hmdp.cache.local.capacity:10000}")
+    private int localCapacity;
+
+    //本地缓存写入后的存活时间,单位秒
+    @Value("${hmdp.cache.local.ttl:60}")
+    private long localTtl;
+
+    //本地缓存,未开启时为null
+    private LocalCache localCache;
+
+    //按keyPrefix区分的监控指标
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    //热点key探测器
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    //热点key的本地副本最大容量
+    @Value("${hmdp.cache.hot-key.local-capacity:1000}")
+    private int hotCapacity;
+
+    //热点key的本地副本存活时间,单位秒,与是否开启本地缓存无关
+    @Value("${hmdp.cache.hot-key.local-ttl:5}")
+    private long hotTtl;
+
+    //热点key的本地副本
+    private LocalCache hotCache;
+
+    //Redis(L2)命中/未命中次数
+    private final LongAdder redisHitCount = new LongAdder();
+    private final LongAdder redisMissCount = new LongAdder();
+
+    //提前刷新的系数,越大越倾向于提前刷新
+    @Value("${hmdp.cache.refresh-ahead.beta:1.0}")
+    private double refreshAheadBeta;
+
+    //每种keyPrefix重建缓存的平均耗时,单位毫秒,keyPrefix -> 耗时
+    private final Map<String, Long> rebuildCostMillis = new ConcurrentHashMap<>();
+
+    //提前刷新的次数
+    private final LongAdder refreshAheadCount = new LongAdder();
+
+    //防止缓存穿透的过滤器,keyPrefix -> 过滤器,过滤器返回false代表id一定不存在
+    private final Map<String, Predicate<Object>> penetrationFilters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        codec = codecs.stream().filter(c -> c.name().equals(codecType)).findFirst()
+                .orElseThrow(() -> new IllegalStateException("不支持的缓存编码: " + codecType));
+        AtomicInteger threadNumber = new AtomicInteger();
+        asyncDbExecutor = new ThreadPoolExecutor(asyncDbThreads, asyncDbThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(asyncDbQueueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "cache-async-db-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        AtomicInteger dbThreadNumber = new AtomicInteger();
+        dbExecutor = new ThreadPoolExecutor(0, breakerDbThreads, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                r -> {
+                    Thread thread = new Thread(r, "cache-db-" + dbThreadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        degradedDbPermits = new Semaphore(degradedDbConcurrency);
+        //redis恢复后补做降级期间的写操作
+        redisHealthProbe.addRecoveryListener(this::flushPendingWrites);
+        staleCache = new LocalCache(staleCapacity, TimeUnit.SECONDS.toMillis(staleGrace));
+        hotCache = new LocalCache(hotCapacity, TimeUnit.SECONDS.toMillis(hotTtl));
+        if (localEnabled) {
+            localCache = new LocalCache(localCapacity, TimeUnit.SECONDS.toMillis(localTtl));
+        }
+        //订阅失效消息,收到后删除本节点的本地缓存和热点key副本
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> removeLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL)
+        );
+    }
+
+    @PreDestroy
+    private void destroy() {
+        asyncDbExecutor.shutdownNow();
+        dbExecutor.shutdownNow();
+    }
+
+    /**
+     * 为指定的keyPrefix注册防穿透过滤器(例如布隆过滤器)
+     * 注册后,过滤器判定不存在的id直接返回null,不再访问redis和数据库,也不再缓存空值
+     * @param keyPrefix
+     * @param filter    返回false代表id一定不存在
+     */
+    public void registerFilter(String keyPrefix, Predicate<Object> filter) {
+        penetrationFilters.put(keyPrefix, filter);
+    }
+
+    /**
+     * 判断id是否被过滤器拦截
+     * @param keyPrefix
+     * @param id
+     * @return true代表id一定不存在
+     */
+    private boolean isFiltered(String keyPrefix, Object id) {
+        Predicate<Object> filter = penetrationFilters.get(keyPrefix);
+        return filter != null && !filter.test(id);
+    }
+
+    /**
+     * 删除缓存,并广播失效消息,让所有节点删除各自的本地缓存
+     * @param key
+     */
+    public void delete(String key) {
+        if (!redisHealthProbe.isAvailable()) {
+            //降级期间只删除本地缓存,恢复后再删除redis
+            removeLocal(key);
+            pendingWrites.put(key, () -> delete(key));
+            return;
+        }
+        stringRedisTemplate.delete(key);
+        removeLocal(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 各级缓存的命中情况,用于评估本地缓存的容量
+     * @return
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        if (localCache != null) {
+            stats.put("localSize", localCache.size());
+            stats.put("localHitCount", localCache.getHitCount());
+            stats.put("localMissCount", localCache.getMissCount());
+            stats.put("localHitRatio", ratio(localCache.getHitCount(), localCache.getMissCount()));
+        }
+        stats.put("hotSize", hotCache.size());
+        stats.put("hotHitCount", hotCache.getHitCount());
+        stats.put("redisHitCount", redisHitCount.sum());
+        stats.put("redisMissCount", redisMissCount.sum());
+        stats.put("redisHitRatio", ratio(redisHitCount.sum(), redisMissCount.sum()));
+        stats.put("refreshAheadCount", refreshAheadCount.sum());
+        stats.put("rebuildCostMillis", new HashMap<>(rebuildCostMillis));
+        return stats;
+    }
+
+    /**
+     * 记录一次查询的结果,同时更新总的命中统计和按keyPrefix区分的监控指标
+     * @param keyPrefix
+     * @param result    CacheMetrics中的RESULT_*
+     */
+    private void record(String keyPrefix, String result) {
+        if (CacheMetrics.RESULT_MISS.equals(result)) {
+            redisMissCount.increment();
+        } else if (CacheMetrics.RESULT_HIT.equals(result) || CacheMetrics.RESULT_NULL_HIT.equals(result)) {
+            redisHitCount.increment();
+        }
+        cacheMetrics.request(keyPrefix, result);
+    }
+
+    /**
+     * 查询redis,遇到连接失败或超时时立即进入降级模式
+     * @param key
+     * @return
+     */
+    private byte[] redisGet(String key) {
+        try {
+            return byteRedisTemplate.opsForValue().get(key);
+        } catch (RuntimeException e) {
+            if (RedisHealthProbe.isUnavailable(e)) {
+                redisHealthProbe.reportFailure(e);
+            }
+            throw e;
+        }
+    }
+
     /**
-     * 将任意Java对象序列化为json并存储在string类型的key中，并且可以设置TTL过期时间
+     * 异步查询redis,遇到连接失败或超时时立即进入降级模式
+     * @param key
+     * @return
+     */
+    private CompletableFuture<byte[]> asyncGet(String key) {
+        return asyncRedisConnection.async().get(key).toCompletableFuture().whenComplete((bytes, e) -> {
+            if (e != null && RedisHealthProbe.isUnavailable(e)) {
+                redisHealthProbe.reportFailure(e);
+            }
+        });
+    }
+
+    /**
+     * 降级模式下的查询:redis不可用,先使用最近一次的数据,没有时在全局的并发限制下查询数据库
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param dbFallback
+     * @return
+     * @param <R>
+     * @param <ID>
+     * @throws CircuitBreaker.RejectedException 查询数据库的并发已满
+     */
+    private <R, ID> R queryDegraded(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback) {
+        String key = keyPrefix + id;
+        Object stale = staleCache.get(key);
+        if (type.isInstance(stale)) {
+            record(keyPrefix, CacheMetrics.RESULT_DEGRADED);
+            return type.cast(stale);
+        }
+        record(keyPrefix, CacheMetrics.RESULT_DEGRADED_MISS);
+        if (!degradedDbPermits.tryAcquire()) {
+            cacheMetrics.dbRejected(keyPrefix, CircuitBreaker.REASON_BULKHEAD);
+            throw new CircuitBreaker.RejectedException(CircuitBreaker.REASON_BULKHEAD, null);
+        }
+        try {
+            R r = loadFromDb(keyPrefix, id, dbFallback);
+            if (r != null) {
+                staleCache.put(key, r);
+            }
+            return r;
+        } finally {
+            degradedDbPermits.release();
+        }
+    }
+
+    /**
+     * queryBatch的降级模式,先使用最近一次的数据,剩下的id在全局的并发限制下一次性查询数据库
+     * @param keyPrefix
+     * @param ids
+     * @param type
+     * @param dbFallback
+     * @param result        查询到的数据放入其中
+     * @param <R>
+     * @param <ID>
+     */
+    private <R, ID> void queryBatchDegraded(String keyPrefix, List<ID> ids, Class<R> type
+            , Function<Collection<ID>, Map<ID, R>> dbFallback, Map<ID, R> result) {
+        List<ID> missIds = new ArrayList<>();
+        for (ID id : ids) {
+            Object stale = staleCache.get(keyPrefix + id);
+            if (type.isInstance(stale)) {
+                record(keyPrefix, CacheMetrics.RESULT_DEGRADED);
+                result.put(id, type.cast(stale));
+            } else {
+                record(keyPrefix, CacheMetrics.RESULT_DEGRADED_MISS);
+                missIds.add(id);
+            }
+        }
+        if (missIds.isEmpty()) {
+            return;
+        }
+        if (!degradedDbPermits.tryAcquire()) {
+            cacheMetrics.dbRejected(keyPrefix, CircuitBreaker.REASON_BULKHEAD);
+            throw new CircuitBreaker.RejectedException(CircuitBreaker.REASON_BULKHEAD, null);
+        }
+        try {
+            Map<ID, R> loaded = loadFromDb(keyPrefix, missIds, dbFallback);
+            if (loaded != null) {
+                loaded.forEach((id, r) -> {
+                    if (r != null) {
+                        staleCache.put(keyPrefix + id, r);
+                        result.put(id, r);
+                    }
+                });
+            }
+        } finally {
+            degradedDbPermits.release();
+        }
+    }
+
+    /**
+     * queryDegraded的异步版本,查询数据库时在异步查询的线程池中执行
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param dbFallback
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    private <R, ID> CompletableFuture<R> queryDegradedAsync(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback) {
+        try {
+            return CompletableFuture.supplyAsync(() -> queryDegraded(keyPrefix, id, type, dbFallback), asyncDbExecutor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<R> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * redis恢复后补做降级期间没能写入的操作
+     */
+    private void flushPendingWrites() {
+        for (String key : new ArrayList<>(pendingWrites.keySet())) {
+            Runnable write = pendingWrites.remove(key);
+            if (write != null) {
+                write.run();
+            }
+        }
+    }
+
+    /**
+     * 在熔断器的保护下查询数据库,并记录耗时
+     * @param keyPrefix
+     * @param id
+     * @param dbFallback
+     * @return
+     * @param <R>
+     * @param <ID>
+     * @throws CircuitBreaker.RejectedException 熔断、并发已满、超时或查询异常
+     */
+    private <R, ID> R loadFromDb(String keyPrefix, ID id, Function<ID, R> dbFallback) {
+        long start = System.nanoTime();
+        try {
+            return breakerOf(keyPrefix).call(() -> dbFallback.apply(id), dbExecutor);
+        } catch (CircuitBreaker.RejectedException e) {
+            cacheMetrics.dbRejected(keyPrefix, e.getReason());
+            throw e;
+        } finally {
+            cacheMetrics.dbFallback(keyPrefix, System.nanoTime() - start);
+        }
+    }
+
+    private CircuitBreaker breakerOf(String keyPrefix) {
+        return breakers.computeIfAbsent(keyPrefix, k -> {
+            CircuitBreaker breaker = new CircuitBreaker(breakerFailureThreshold, breakerOpenMillis
+                    , breakerTimeoutMillis, breakerMaxConcurrent);
+            cacheMetrics.breaker(keyPrefix, breaker);
+            return breaker;
+        });
+    }
+
+    /**
+     * 数据库不可用时,返回最近一次的数据
+     * @param keyPrefix
+     * @param key
+     * @param e     查询数据库失败的原因
+     * @return
+     * @param <R>
+     * @throws CircuitBreaker.RejectedException 没有最近一次的数据
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R staleOrThrow(String keyPrefix, String key, CircuitBreaker.RejectedException e) {
+        Object stale = staleCache.get(key);
+        if (stale == null) {
+            throw e;
+        }
+        cacheMetrics.staleOnError(keyPrefix);
+        return (R) stale;
+    }
+
+    private static double ratio(long hit, long miss) {
+        long total = hit + miss;
+        return total == 0 ? 0D : (double) hit / total;
+    }
+
+    /**
+     * 将任意Java对象编码后存储在string类型的key中，并且可以设置TTL过期时间
      * @param key
      * @param value
      * @param time
      * @param unit
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        byte[] bytes = codec.encode(value);
+        cacheMetrics.valueSize(CacheMetrics.prefixOf(key), bytes.length);
+        byteRedisTemplate.opsForValue().set(key, bytes, time, unit);
     }
 
     /**
-     * 将任意Java对象序列化为json并存储在string类型的key中，并且可以设置逻辑过期时间，用于处理缓存击穿问题
+     * 将任意Java对象编码后存储在string类型的key中，并且可以设置逻辑过期时间，用于处理缓存击穿问题
      * 逻辑过期永久有效，所以没有时间
      * @param key
      * @param value
@@ -50,7 +553,209 @@ public class CacheClient {
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
         //写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        byte[] bytes = codec.encodeLogic(redisData);
+        cacheMetrics.valueSize(CacheMetrics.prefixOf(key), bytes.length);
+        byteRedisTemplate.opsForValue().set(key, bytes);
+    }
+
+    /**
+     * 更新数据后写入缓存(write-through),数据带逻辑过期时间,并生成新的版本号
+     * 之后基于旧版本号的缓存重建不会再覆盖它,热点数据也不会因为更新而未命中
+     * 必须在数据库事务提交之后调用
+     * @param key
+     * @param value
+     * @param time      时间
+     * @param unit      时间单位
+     */
+    public void writeThrough(String key, Object value, Long time, TimeUnit unit) {
+        if (!redisHealthProbe.isAvailable()) {
+            //降级期间只更新本地的最近一次数据,恢复后再写入redis
+            removeLocal(key);
+            staleCache.put(key, value);
+            pendingWrites.put(key, () -> writeThrough(key, value, time, unit));
+            return;
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        byte[] bytes = codec.encodeLogic(redisData);
+        cacheMetrics.valueSize(CacheMetrics.prefixOf(key), bytes.length);
+        byteRedisTemplate.execute(VERSIONED_SET_SCRIPT, Arrays.asList(key, RedisConstants.CACHE_VERSION_KEY + key)
+                , bytes, new byte[0], versionTtl(time, unit, 0));
+        //通知所有节点删除本地缓存,下次访问时从redis读取新数据
+        removeLocal(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 缓存重建时写入带逻辑过期时间的数据,版本号落后于缓存中的数据时放弃写入
+     * @param key
+     * @param value
+     * @param version   读取数据库之前的版本号
+     * @param time
+     * @param unit
+     * @return 是否写入成功
+     */
+    private boolean setWithLogicExpireIfNewer(String key, Object value, long version, Long time, TimeUnit unit) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        byte[] bytes = codec.encodeLogic(redisData);
+        cacheMetrics.valueSize(CacheMetrics.prefixOf(key), bytes.length);
+        Long result = byteRedisTemplate.execute(VERSIONED_SET_SCRIPT
+                , Arrays.asList(key, RedisConstants.CACHE_VERSION_KEY + key)
+                , bytes, String.valueOf(version).getBytes(StandardCharsets.UTF_8), versionTtl(time, unit, 0));
+        return result == null || result >= 0;
+    }
+
+    /**
+     * 版本key的过期时间参数,不小于数据的逻辑过期时间,版本key不会无限增长
+     * @param time
+     * @param unit
+     * @param jitterSeconds 数据逻辑过期时间的随机偏移上限
+     * @return 单位秒
+     */
+    private static byte[] versionTtl(Long time, TimeUnit unit, long jitterSeconds) {
+        long seconds = Math.max(unit.toSeconds(time) + jitterSeconds, 1);
+        return String.valueOf(seconds).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 通过pipeline批量查询数据的最新版本号,必须在查询数据库之前调用,再传给setWithLogicExpireBatch
+     * @param keys
+     * @return key -> 版本号,从未更新过时为0
+     */
+    public Map<String, Long> currentVersions(Collection<String> keys) {
+        List<String> keyList = new ArrayList<>(keys);
+        List<Object> seqs = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keyList) {
+                connection.hGet((RedisConstants.CACHE_VERSION_KEY + key).getBytes(StandardCharsets.UTF_8)
+                        , "seq".getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        Map<String, Long> versions = new HashMap<>(keyList.size() * 2);
+        for (int i = 0; i < keyList.size(); i++) {
+            Object seq = seqs.get(i);
+            versions.put(keyList.get(i), seq == null ? 0L : Long.parseLong(seq.toString()));
+        }
+        return versions;
+    }
+
+    /**
+     * 查询数据的最新版本号,从未更新过时为0
+     * @param key
+     * @return
+     */
+    private long currentVersion(String key) {
+        Object seq = stringRedisTemplate.opsForHash().get(RedisConstants.CACHE_VERSION_KEY + key, "seq");
+        return seq == null ? 0L : Long.parseLong(seq.toString());
+    }
+
+    /**
+     * 写入带过期时间头部的数据,redis中的TTL与头部的过期时间一致,用于提前刷新
+     * @param key
+     * @param value
+     * @param time      时间
+     * @param unit      时间单位
+     */
+    public void setWithRefreshAhead(String key, Object value, Long time, TimeUnit unit) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        byte[] bytes = codec.encodeLogic(redisData);
+        cacheMetrics.valueSize(CacheMetrics.prefixOf(key), bytes.length);
+        byteRedisTemplate.opsForValue().set(key, bytes, time, unit);
+    }
+
+    /**
+     * 通过pipeline批量写入带逻辑过期时间的数据,用于缓存预热和批量查询的回填
+     * 与单个key的缓存重建一样经过带版本号写入的脚本,读取数据库之后缓存已经被更新过的key放弃写入
+     * 每个key的逻辑过期时间额外加上随机的偏移,避免大量key在同一时刻过期
+     * @param values        key -> 数据
+     * @param versions      key -> 读取数据库之前通过currentVersions查询的版本号
+     * @param time          逻辑过期时间
+     * @param unit          时间单位
+     * @param jitterSeconds 随机偏移的上限,单位秒
+     */
+    public void setWithLogicExpireBatch(Map<String, ?> values, Map<String, Long> versions
+            , Long time, TimeUnit unit, long jitterSeconds) {
+        if (values.isEmpty()) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        Map<String, byte[]> encoded = new LinkedHashMap<>(values.size() * 2);
+        values.forEach((key, value) -> {
+            long jitter = jitterSeconds > 0 ? ThreadLocalRandom.current().nextLong(jitterSeconds) : 0;
+            RedisData redisData = new RedisData();
+            redisData.setData(value);
+            redisData.setExpireTime(now.plusSeconds(unit.toSeconds(time) + jitter));
+            byte[] bytes = codec.encodeLogic(redisData);
+            cacheMetrics.valueSize(CacheMetrics.prefixOf(key), bytes.length);
+            encoded.put(key, bytes);
+        });
+        byte[] ttl = versionTtl(time, unit, jitterSeconds);
+        byte[] script = VERSIONED_SET_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        String sha = VERSIONED_SET_SCRIPT.getSha1();
+        List<Object> results = byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            //先在同一个pipeline中加载脚本,后面的EVALSHA不会遇到NOSCRIPT
+            connection.scriptLoad(script);
+            encoded.forEach((key, bytes) -> {
+                Long version = versions.get(key);
+                connection.evalSha(sha, ReturnType.INTEGER, 2
+                        , key.getBytes(StandardCharsets.UTF_8)
+                        , (RedisConstants.CACHE_VERSION_KEY + key).getBytes(StandardCharsets.UTF_8)
+                        , bytes
+                        , String.valueOf(version == null ? 0L : version).getBytes(StandardCharsets.UTF_8)
+                        , ttl);
+            });
+            return null;
+        });
+        //第一个结果是SCRIPT LOAD的返回值,之后每个key一个结果,-1代表已有更新的数据,放弃写入
+        int i = 1;
+        for (String key : encoded.keySet()) {
+            Object result = i < results.size() ? results.get(i++) : null;
+            if (result instanceof Long && (Long) result < 0) {
+                cacheMetrics.staleWriteRejected(CacheMetrics.prefixOf(key));
+            }
+        }
+    }
+
+    /**
+     * 根据数据头部找到对应的编解码器
+     * @param bytes
+     * @return 无法识别时返回null
+     */
+    private CacheCodec codecOf(byte[] bytes) {
+        for (CacheCodec c : codecs) {
+            if (c.supports(bytes)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 解码缓存数据
+     * @param bytes
+     * @param type
+     * @return 无法解码时返回null,调用方按未命中处理
+     * @param <R>
+     */
+    private <R> R decode(byte[] bytes, Class<R> type) {
+        CacheCodec c = codecOf(bytes);
+        return c == null ? null : c.decode(bytes, type);
+    }
+
+    /**
+     * 解码带逻辑过期时间的缓存数据
+     * @param bytes
+     * @param type
+     * @return 无法解码时返回null
+     */
+    private RedisData decodeLogic(byte[] bytes, Class<?> type) {
+        CacheCodec c = codecOf(bytes);
+        return c == null ? null : c.decodeLogic(bytes, type);
     }
 
 
@@ -68,44 +773,520 @@ public class CacheClient {
      */
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type
             , Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        //过滤器判定不存在,直接返回
+        if (isFiltered(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        //0.先查本地缓存
+        Object local = getLocal(key);
+        if (type.isInstance(local)) {
+            record(keyPrefix, CacheMetrics.RESULT_LOCAL_HIT);
+            return type.cast(local);
+        }
+        //redis不可用,进入降级模式
+        if (!redisHealthProbe.isAvailable()) {
+            return queryDegraded(keyPrefix, id, type, dbFallback);
+        }
         //1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = redisGet(key);
         //2.判断redis中缓存是否存在
-        if (StrUtil.isNotBlank(json)) {
-            //3.存在，反序列化为R的类型，并返回
-            return JSONUtil.toBean(json, type);
-        }
-
-        //判断命中的是否是空值
-        if (json != null) { //若不为空,则说明是一个 "",已经是缓存穿透了
+        if (bytes != null && bytes.length > 0) {
+            //3.存在，反序列化为R的类型，写入本地缓存并返回
+            R r = cacheHit(key, bytes, type);
+            if (r != null) {
+                record(keyPrefix, CacheMetrics.RESULT_HIT);
+                return r;
+            }
+            //格式不匹配(例如实体类字段发生了变化),按未命中处理
+        } else if (bytes != null) { //若不为空,则说明是一个 "",已经是缓存穿透了
+            //判断命中的是否是空值
+            record(keyPrefix, CacheMetrics.RESULT_NULL_HIT);
             //返回一个错误信息
             return null;
         }
+        record(keyPrefix, CacheMetrics.RESULT_MISS);
+
+        //不存在,根据id查询数据库,同一节点内同一个key只有一个线程查询数据库
+        return singleFlight.execute(key, () -> loadAndCache(keyPrefix, id, dbFallback, time, unit));
+    }
+
+    /**
+     * queryWithPassThrough的异步版本,查询redis时不阻塞调用线程
+     * 未命中时在独立的有界线程池中查询数据库,线程池已满时返回的future以RejectedExecutionException失败
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param dbFallback
+     * @param time
+     * @param unit
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    public <R, ID> CompletableFuture<R> queryWithPassThroughAsync(String keyPrefix, ID id, Class<R> type
+            , Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        //过滤器判定不存在,直接返回
+        if (isFiltered(keyPrefix, id)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        String key = keyPrefix + id;
+        //0.先查本地缓存
+        Object local = getLocal(key);
+        if (type.isInstance(local)) {
+            record(keyPrefix, CacheMetrics.RESULT_LOCAL_HIT);
+            return CompletableFuture.completedFuture(type.cast(local));
+        }
+        //redis不可用,进入降级模式
+        if (!redisHealthProbe.isAvailable()) {
+            return queryDegradedAsync(keyPrefix, id, type, dbFallback);
+        }
+        //1.异步查询redis,回调在lettuce的IO线程中执行,不能有阻塞操作
+        return asyncGet(key).thenCompose(bytes -> {
+            if (bytes != null && bytes.length > 0) {
+                //2.命中,反序列化后返回
+                R r = cacheHit(key, bytes, type);
+                if (r != null) {
+                    record(keyPrefix, CacheMetrics.RESULT_HIT);
+                    return CompletableFuture.completedFuture(r);
+                }
+            } else if (bytes != null) {
+                //命中空值
+                record(keyPrefix, CacheMetrics.RESULT_NULL_HIT);
+                return CompletableFuture.<R>completedFuture(null);
+            }
+            record(keyPrefix, CacheMetrics.RESULT_MISS);
+            //3.未命中,在数据库线程池中查询,同一节点内同一个key只有一个任务
+            return singleFlight.<R>executeAsync(key, asyncDbExecutor
+                    , () -> loadAndCache(keyPrefix, id, dbFallback, time, unit));
+        });
+    }
 
-        //不存在,根据id查询数据库
+    /**
+     * 查询数据库并写入缓存,数据库中不存在时缓存空值
+     * @param keyPrefix
+     * @param id
+     * @param dbFallback
+     * @param time
+     * @param unit
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    private <R, ID> R loadAndCache(String keyPrefix, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        long start = System.nanoTime();
         //由于自己是不知道该查询什么的,因此由方法调用这传递这段逻辑
         //有参有返回值的用 Function<ID,R>
-        R r = dbFallback.apply(id);
+        R r;
+        try {
+            r = loadFromDb(keyPrefix, id, dbFallback);
+        } catch (CircuitBreaker.RejectedException e) {
+            //数据库不可用,返回最近一次的数据
+            return staleOrThrow(keyPrefix, key, e);
+        }
 
         //数据库中也没有数据
         if (r == null) {
-            //将""写入redis中,防止以后再访问数据库
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            //有过滤器时只有误判的id才会走到这里,无需缓存空值
+            if (!penetrationFilters.containsKey(keyPrefix)) {
+                //将""写入redis中,防止以后再访问数据库
+                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            }
             //返回错我信息
             return null;
         }
 
         //若数据库中有数据,将数据写入redis中
         this.set(key, r, time, unit);
+        cacheMetrics.rebuild(keyPrefix, System.nanoTime() - start);
+        putLocal(key, r);
 
         return r;
     }
 
+    /**
+     * 根据指定的key查询缓存，并反序列化为指定类型，利用互斥锁解决缓存击穿问题
+     * 未命中时同一节点内只有一个线程去竞争分布式锁并重建缓存,其余线程等待它的结果
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param dbFallback
+     * @param time
+     * @param unit
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type
+            , Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        //过滤器判定不存在,直接返回
+        if (isFiltered(keyPrefix, id)) {
+            return null;
+        }
+        String key = keyPrefix + id;
+        //0.先查本地缓存
+        Object local = getLocal(key);
+        if (type.isInstance(local)) {
+            record(keyPrefix, CacheMetrics.RESULT_LOCAL_HIT);
+            return type.cast(local);
+        }
+        //redis不可用,进入降级模式
+        if (!redisHealthProbe.isAvailable()) {
+            return queryDegraded(keyPrefix, id, type, dbFallback);
+        }
+        //1.从redis查询缓存
+        byte[] bytes = redisGet(key);
+        if (bytes != null) {
+            //命中空值直接返回null,否则反序列化后返回
+            if (bytes.length == 0) {
+                record(keyPrefix, CacheMetrics.RESULT_NULL_HIT);
+                return null;
+            }
+            R r = cacheHit(key, bytes, type);
+            if (r != null) {
+                record(keyPrefix, CacheMetrics.RESULT_HIT);
+                return r;
+            }
+        }
+        record(keyPrefix, CacheMetrics.RESULT_MISS);
+
+        //2.未命中,同一节点内只有一个线程去获取互斥锁
+        return singleFlight.execute(key, () -> {
+            String lockKey = lockKey(key);
+            long deadline = System.currentTimeMillis() + mutexWaitMillis;
+            while (true) {
+                //2.1获取锁
+                if (tryLock(lockKey)) {
+                    try {
+                        //2.2获取锁成功,再次检查缓存,其他节点可能已经重建完成
+                        byte[] cached = redisGet(key);
+                        if (cached != null && cached.length == 0) {
+                            return null;
+                        }
+                        R cachedValue = cached == null ? null : cacheHit(key, cached, type);
+                        if (cachedValue != null) {
+                            return cachedValue;
+                        }
+                        //2.3查询数据库并写入缓存
+                        return loadAndCache(keyPrefix, id, dbFallback, time, unit);
+                    } finally {
+                        //释放锁
+                        unLock(lockKey);
+                    }
+                }
+                //2.4获取锁失败,说明其他节点正在重建,休眠后检查缓存
+                cacheMetrics.lockFailed(keyPrefix);
+                //2.5等待超时,重建的节点可能卡住或宕机,返回最近一次的数据,没有时直接失败
+                if (System.currentTimeMillis() >= deadline) {
+                    Object stale = staleCache.get(key);
+                    if (type.isInstance(stale)) {
+                        cacheMetrics.staleServed(keyPrefix);
+                        return type.cast(stale);
+                    }
+                    throw new CircuitBreaker.RejectedException(CircuitBreaker.REASON_TIMEOUT, null);
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+                byte[] cached = redisGet(key);
+                if (cached != null && cached.length == 0) {
+                    return null;
+                }
+                R cachedValue = cached == null ? null : cacheHit(key, cached, type);
+                if (cachedValue != null) {
+                    return cachedValue;
+                }
+            }
+        });
+    }
+
+    /**
+     * 反序列化redis中的数据并写入本地缓存
+     * @param key
+     * @param bytes
+     * @param type
+     * @return 无法解码时返回null
+     * @param <R>
+     */
+    private <R> R cacheHit(String key, byte[] bytes, Class<R> type) {
+        R r = decode(bytes, type);
+        putLocal(key, r);
+        return r;
+    }
+
+
+    /**
+     * 批量查询缓存,利用缓存空值的方式解决缓存穿透问题
+     * 一次MGET查询所有key,未命中的id一次性交给数据库查询,再通过pipeline批量写回redis
+     * @param keyPrefix     key的前缀
+     * @param ids           id集合,重复的id只查询一次
+     * @param type
+     * @param dbFallback    根据多个id批量查询数据库的方法,返回 id -> 数据
+     * @param time          缓存持续时间
+     * @param unit
+     * @return              按请求顺序排列的数据,不存在的id会被跳过
+     * @param <R>
+     * @param <ID>
+     */
+    public <R, ID> List<R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> type
+            , Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<ID> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        //过滤器判定不存在的id直接跳过
+        idList.removeIf(id -> isFiltered(keyPrefix, id));
+        boolean cacheNull = !penetrationFilters.containsKey(keyPrefix);
+        Map<ID, R> result = new HashMap<>(idList.size() * 2);
+
+        //1.先查本地缓存,剩下的id再查redis
+        List<ID> redisIds = new ArrayList<>(idList.size());
+        for (ID id : idList) {
+            Object local = getLocal(keyPrefix + id);
+            if (type.isInstance(local)) {
+                record(keyPrefix, CacheMetrics.RESULT_LOCAL_HIT);
+                result.put(id, type.cast(local));
+            } else {
+                redisIds.add(id);
+            }
+        }
+        //redis不可用,进入降级模式,不再查询和写入redis
+        if (!redisHealthProbe.isAvailable()) {
+            queryBatchDegraded(keyPrefix, redisIds, type, dbFallback, result);
+            redisIds.clear();
+        }
+
+        //2.一次MGET查询redis
+        List<ID> missIds = new ArrayList<>();
+        if (!redisIds.isEmpty()) {
+            List<String> keys = new ArrayList<>(redisIds.size());
+            for (ID id : redisIds) {
+                keys.add(keyPrefix + id);
+            }
+            List<byte[]> values;
+            try {
+                values = byteRedisTemplate.opsForValue().multiGet(keys);
+            } catch (RuntimeException e) {
+                if (RedisHealthProbe.isUnavailable(e)) {
+                    redisHealthProbe.reportFailure(e);
+                }
+                throw e;
+            }
+            for (int i = 0; i < redisIds.size(); i++) {
+                byte[] bytes = values == null ? null : values.get(i);
+                //命中空值,说明数据库中也不存在
+                if (bytes != null && bytes.length == 0) {
+                    record(keyPrefix, CacheMetrics.RESULT_NULL_HIT);
+                    continue;
+                }
+                R r = bytes == null ? null : cacheHit(keys.get(i), bytes, type);
+                if (r == null) {
+                    //未命中
+                    record(keyPrefix, CacheMetrics.RESULT_MISS);
+                    missIds.add(redisIds.get(i));
+                    continue;
+                }
+                record(keyPrefix, CacheMetrics.RESULT_HIT);
+                result.put(redisIds.get(i), r);
+            }
+        }
+
+        //3.未命中的id一次性查询数据库,并通过pipeline批量写回redis
+        Map<ID, R> loaded = null;
+        boolean loadFailed = false;
+        long start = System.nanoTime();
+        if (!missIds.isEmpty()) {
+            try {
+                loaded = loadFromDb(keyPrefix, missIds, dbFallback);
+            } catch (CircuitBreaker.RejectedException e) {
+                //数据库不可用,返回最近一次的数据,不写回redis
+                loadFailed = true;
+                for (ID id : missIds) {
+                    Object stale = staleCache.get(keyPrefix + id);
+                    if (type.isInstance(stale)) {
+                        cacheMetrics.staleOnError(keyPrefix);
+                        result.put(id, type.cast(stale));
+                    }
+                }
+            }
+        }
+        if (!missIds.isEmpty() && !loadFailed) {
+            Map<String, byte[]> values = new HashMap<>(missIds.size() * 2);
+            for (ID id : missIds) {
+                R r = loaded == null ? null : loaded.get(id);
+                if (r == null) {
+                    //数据库中也没有的,写入空值防止缓存穿透
+                    if (cacheNull) {
+                        values.put(keyPrefix + id, new byte[0]);
+                    }
+                    continue;
+                }
+                byte[] bytes = codec.encode(r);
+                cacheMetrics.valueSize(keyPrefix, bytes.length);
+                values.put(keyPrefix + id, bytes);
+                putLocal(keyPrefix + id, r);
+                result.put(id, r);
+            }
+            Expiration ttl = Expiration.from(time, unit);
+            Expiration nullTtl = Expiration.from(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                values.forEach((key, value) -> connection.set(key.getBytes(StandardCharsets.UTF_8), value
+                        , value.length == 0 ? nullTtl : ttl, RedisStringCommands.SetOption.upsert()));
+                return null;
+            });
+            cacheMetrics.rebuild(keyPrefix, System.nanoTime() - start);
+        }
+
+        //4.按请求的顺序返回
+        List<R> list = new ArrayList<>(result.size());
+        for (ID id : idList) {
+            R r = result.get(id);
+            if (r != null) {
+                list.add(r);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 批量查询逻辑过期的缓存,一次MGET查询所有key,已过期的key各自提交后台重建并返回过期的数据
+     * 缓存中不存在的id(例如还没有预热)一次性交给数据库查询,再通过pipeline批量写回redis
+     * @param keyPrefix     key的前缀
+     * @param ids           id集合,重复的id只查询一次
+     * @param type
+     * @param dbFallback    根据多个id批量查询数据库的方法,返回 id -> 数据
+     * @param time          逻辑过期时间
+     * @param unit
+     * @return              按请求顺序排列的数据,不存在的id会被跳过
+     * @param <R>
+     * @param <ID>
+     */
+    public <R, ID> List<R> queryBatchWithLogicExpire(String keyPrefix, Collection<ID> ids, Class<R> type
+            , Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<ID> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        //过滤器判定不存在的id直接跳过
+        idList.removeIf(id -> isFiltered(keyPrefix, id));
+        Map<ID, R> result = new HashMap<>(idList.size() * 2);
+        //单个key过期重建时使用的查询方法
+        Function<ID, R> singleFallback = id -> {
+            Map<ID, R> loaded = dbFallback.apply(Collections.singletonList(id));
+            return loaded == null ? null : loaded.get(id);
+        };
+
+        //1.先查本地缓存,逻辑未过期才直接使用,已过期的留着与redis比较版本
+        List<ID> redisIds = new ArrayList<>(idList.size());
+        Map<ID, RedisData> expiredLocal = new HashMap<>();
+        for (ID id : idList) {
+            Object local = getLocal(keyPrefix + id);
+            if (local instanceof RedisData && type.isInstance(((RedisData) local).getData())) {
+                RedisData localData = (RedisData) local;
+                if (localData.getExpireTime().isAfter(LocalDateTime.now())) {
+                    record(keyPrefix, CacheMetrics.RESULT_LOCAL_HIT);
+                    result.put(id, type.cast(localData.getData()));
+                    continue;
+                }
+                expiredLocal.put(id, localData);
+            }
+            redisIds.add(id);
+        }
+        //redis不可用,进入降级模式,不再查询和写入redis
+        if (!redisHealthProbe.isAvailable()) {
+            queryBatchDegraded(keyPrefix, redisIds, type, dbFallback, result);
+            redisIds.clear();
+        }
+
+        //2.一次MGET查询redis,逐个判断逻辑过期
+        List<ID> missIds = new ArrayList<>();
+        if (!redisIds.isEmpty()) {
+            List<String> keys = new ArrayList<>(redisIds.size());
+            for (ID id : redisIds) {
+                keys.add(keyPrefix + id);
+            }
+            List<byte[]> values;
+            try {
+                values = byteRedisTemplate.opsForValue().multiGet(keys);
+            } catch (RuntimeException e) {
+                if (RedisHealthProbe.isUnavailable(e)) {
+                    redisHealthProbe.reportFailure(e);
+                }
+                throw e;
+            }
+            for (int i = 0; i < redisIds.size(); i++) {
+                ID id = redisIds.get(i);
+                byte[] bytes = values == null ? null : values.get(i);
+                R r = resolveLogicExpire(keyPrefix, id, type, singleFallback, time, unit, expiredLocal.get(id), bytes);
+                if (r == null) {
+                    missIds.add(id);
+                } else {
+                    result.put(id, r);
+                }
+            }
+        }
 
-    // 实现一个线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+        //3.未命中的id一次性查询数据库,并通过pipeline批量写回redis
+        if (!missIds.isEmpty()) {
+            long start = System.nanoTime();
+            try {
+                //先记录版本号再查询数据库,查询期间数据被更新时,版本号一定落后
+                List<String> missKeys = new ArrayList<>(missIds.size());
+                for (ID id : missIds) {
+                    missKeys.add(keyPrefix + id);
+                }
+                Map<String, Long> versions = currentVersions(missKeys);
+                Map<ID, R> loaded = loadFromDb(keyPrefix, missIds, dbFallback);
+                Map<String, R> values = new LinkedHashMap<>(missIds.size() * 2);
+                for (ID id : missIds) {
+                    R r = loaded == null ? null : loaded.get(id);
+                    if (r != null) {
+                        values.put(keyPrefix + id, r);
+                        result.put(id, r);
+                    }
+                }
+                setWithLogicExpireBatch(values, versions, time, unit, 0);
+                cacheMetrics.rebuild(keyPrefix, System.nanoTime() - start);
+            } catch (CircuitBreaker.RejectedException e) {
+                //数据库不可用,返回最近一次的数据,不写回redis
+                for (ID id : missIds) {
+                    Object stale = staleCache.get(keyPrefix + id);
+                    if (type.isInstance(stale)) {
+                        cacheMetrics.staleOnError(keyPrefix);
+                        result.put(id, type.cast(stale));
+                    }
+                }
+            }
+        }
 
+        //4.按请求的顺序返回
+        List<R> list = new ArrayList<>(result.size());
+        for (ID id : idList) {
+            R r = result.get(id);
+            if (r != null) {
+                list.add(r);
+            }
+        }
+        return list;
+    }
+
+
+    //进程内按key合并缓存重建,避免同一节点的线程同时竞争锁和查询数据库
+    private final SingleFlight singleFlight = new SingleFlight();
+
+
+    /**
+     * 缓存key对应的互斥锁的key,不同keyPrefix的锁互不影响
+     * @param key   缓存的key
+     * @return
+     */
+    private static String lockKey(String key) {
+        return RedisConstants.LOCK_KEY + key;
+    }
 
     /**
      * 获取锁
@@ -140,50 +1321,388 @@ public class CacheClient {
      */
     public <R, ID> R queryWithLogicExpire(String keyPrefix, ID id, Class<R> type
             , Function<ID, R> dbFallback, Long time, TimeUnit unit) {
-
+        //过滤器判定不存在,直接返回
+        if (isFiltered(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        //0.先查本地缓存,本地缓存中存的是反序列化后的RedisData,逻辑未过期才直接返回
+        RedisData localData = null;
+        Object local = getLocal(key);
+        if (local instanceof RedisData && type.isInstance(((RedisData) local).getData())) {
+            localData = (RedisData) local;
+            if (localData.getExpireTime().isAfter(LocalDateTime.now())) {
+                record(keyPrefix, CacheMetrics.RESULT_LOCAL_HIT);
+                return type.cast(localData.getData());
+            }
+        }
+        //redis不可用,进入降级模式
+        if (!redisHealthProbe.isAvailable()) {
+            return queryDegraded(keyPrefix, id, type, dbFallback);
+        }
         //1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //2.判断redis缓存是否存在
-        if (StrUtil.isBlank(json)) {
+        byte[] bytes = redisGet(key);
+        return resolveLogicExpire(keyPrefix, id, type, dbFallback, time, unit, localData, bytes);
+    }
+
+    /**
+     * queryWithLogicExpire的异步版本,查询redis时不阻塞调用线程
+     * 过期后的重建本来就是异步的,所以返回的future只等待redis的查询
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param dbFallback
+     * @param time
+     * @param unit
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    public <R, ID> CompletableFuture<R> queryWithLogicExpireAsync(String keyPrefix, ID id, Class<R> type
+            , Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        //过滤器判定不存在,直接返回
+        if (isFiltered(keyPrefix, id)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        String key = keyPrefix + id;
+        //0.先查本地缓存
+        Object local = getLocal(key);
+        RedisData localData = local instanceof RedisData && type.isInstance(((RedisData) local).getData())
+                ? (RedisData) local : null;
+        if (localData != null && localData.getExpireTime().isAfter(LocalDateTime.now())) {
+            record(keyPrefix, CacheMetrics.RESULT_LOCAL_HIT);
+            return CompletableFuture.completedFuture(type.cast(localData.getData()));
+        }
+        //redis不可用,进入降级模式
+        if (!redisHealthProbe.isAvailable()) {
+            return queryDegradedAsync(keyPrefix, id, type, dbFallback);
+        }
+        //1.异步查询redis,回调在lettuce的IO线程中执行
+        return asyncGet(key)
+                .thenApply(bytes -> resolveLogicExpire(keyPrefix, id, type, dbFallback, time, unit, localData, bytes));
+    }
+
+    /**
+     * 处理从redis中查询到的逻辑过期数据,已过期时提交重建任务并返回过期的数据
+     * 不会阻塞调用线程,同步和异步的查询共用这段逻辑
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param dbFallback
+     * @param time
+     * @param unit
+     * @param localData     本地缓存中已过期的数据,没有时为null
+     * @param bytes         redis中的数据
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    private <R, ID> R resolveLogicExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback
+            , Long time, TimeUnit unit, RedisData localData, byte[] bytes) {
+        String key = keyPrefix + id;
+        if (bytes == null || bytes.length == 0) {
+            record(keyPrefix, CacheMetrics.RESULT_MISS);
             //若为空,直接返回
             return null;
         }
+        CacheCodec c = codecOf(bytes);
+        if (c == null) {
+            record(keyPrefix, CacheMetrics.RESULT_MISS);
+            return null;
+        }
 
-        //3.若不为空,做反序列化操作,将json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        //2.先只读取头部,本地缓存中的数据版本与redis一致时,不需要再解析数据
+        CacheHeader header = c.readHeader(bytes);
+        RedisData redisData;
+        if (header != null && localData != null && localData.getVersion() != null
+                && localData.getVersion() == header.getVersion()) {
+            redisData = new RedisData();
+            redisData.setData(localData.getData());
+            redisData.setVersion(header.getVersion());
+            redisData.setExpireTime(header.getExpireTime());
+        } else {
+            //3.版本不一致或者不支持只读头部,做反序列化操作
+            redisData = c.decodeLogic(bytes, type);
+            if (redisData == null) {
+                record(keyPrefix, CacheMetrics.RESULT_MISS);
+                return null;
+            }
+        }
+        record(keyPrefix, CacheMetrics.RESULT_HIT);
+        R r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
 
         //4.判断是否过期
         if (expireTime.isAfter(LocalDateTime.now())) {
-            //未过期,直接返回店铺信息
+            //未过期,写入本地缓存,直接返回店铺信息
+            putLocal(key, redisData);
             return r;
         }
 
         //已过期,需要缓存重建
-        //5.缓存重建
-        //获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        //判断获取锁是否成功
-        if (isLock) {
-            //6.成功,开启独立线程,实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+        //5.其他节点正在重建时直接返回过期的信息,不再竞争锁
+        //  重建中的数据头部的过期时间字段是标记重建的时间,标记超过锁的有效期仍未恢复,
+        //  说明重建的节点可能已经宕机,需要重新竞争锁
+        if (header != null && header.getRebuildState() == CacheHeader.STATE_REBUILDING
+                && expireTime.plusSeconds(RedisConstants.LOCK_SHOP_TTL).isAfter(LocalDateTime.now())) {
+            cacheMetrics.staleServed(keyPrefix);
+            return r;
+        }
+        //6.缓存重建,同一节点内已有任务在排队或重建时,直接返回过期的信息,不再竞争锁
+        //  调度器队列已满时任务会被拒绝,同样返回过期的信息
+        //  读取时头部中重建状态、过期时间、数据版本的字节,标记重建时用来确认数据没有被重写
+        byte[] readState = header == null ? null : Arrays.copyOfRange(bytes
+                , BinaryCacheCodec.REBUILD_STATE_OFFSET, BinaryCacheCodec.SCHEMA_HASH_OFFSET);
+        cacheRebuildScheduler.submit(key, () -> {
+            //获取互斥锁
+            String lockKey = lockKey(key);
+            //判断获取锁是否成功
+            if (!tryLock(lockKey)) {
+                cacheMetrics.lockFailed(keyPrefix);
+                return;
+            }
+            //7.成功,在独立线程中实现缓存重建
+            long start = System.nanoTime();
+            byte[] marked = null;
+            try {
+                //只修改头部的重建状态和标记时间,通知其他节点不必再竞争锁
+                if (readState != null) {
+                    marked = updateRebuildState(key, readState, CacheHeader.STATE_REBUILDING);
+                }
+                //先记录版本号再查询数据库,查询期间数据被更新时,版本号一定落后
+                long version = currentVersion(key);
+                R value;
                 try {
-                    //查询数据库
-                    R value = dbFallback.apply(id);
-                    //写入redis,带上逻辑封装的写
-                    this.setWithLogicExpire(key, value, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    //释放锁
-                    unLock(lockKey);
+                    value = loadFromDb(keyPrefix, id, dbFallback);
+                } catch (CircuitBreaker.RejectedException e) {
+                    //数据库不可用,继续使用过期的数据
+                    log.debug("缓存重建失败, key: {}, 原因: {}", key, e.getReason());
+                    return;
                 }
-            });
+                if (value == null) {
+                    //数据已被删除
+                    delete(key);
+                    return;
+                }
+                //写入redis,带上逻辑封装的写,缓存中已经是更新后的数据时放弃写入
+                if (!setWithLogicExpireIfNewer(key, value, version, time, unit)) {
+                    cacheMetrics.staleWriteRejected(keyPrefix);
+                    return;
+                }
+                cacheMetrics.rebuild(keyPrefix, System.nanoTime() - start);
+            } finally {
+                //重建失败时清除重建状态,下次访问重新竞争锁;已经写入新数据时头部不一致,不会修改
+                if (marked != null) {
+                    updateRebuildState(key, marked, CacheHeader.STATE_NORMAL);
+                }
+                //释放锁
+                unLock(lockKey);
+            }
+        });
+        //返回过期的信息
+        cacheMetrics.staleServed(keyPrefix);
+        return r;
+    }
+
+    /**
+     * 修改逻辑过期数据头部的重建状态,过期时间字段同时改为当前时间,作为标记时间判断重建是否已经失效
+     * 头部与读取时一致才修改,key已被删除或数据已被重写时什么也不做
+     * @param key
+     * @param expected  读取时头部中重建状态、过期时间、数据版本的字节
+     * @param state     新的重建状态
+     * @return 修改后头部中对应的字节,没有修改时返回null
+     */
+    private byte[] updateRebuildState(String key, byte[] expected, byte state) {
+        int versionStart = BinaryCacheCodec.VERSION_OFFSET - BinaryCacheCodec.REBUILD_STATE_OFFSET;
+        ByteBuffer updated = ByteBuffer.allocate(expected.length);
+        updated.put(state);
+        //与BinaryCacheCodec写入过期时间的方式一致
+        updated.putLong(LocalDateTime.now().toInstant(ZoneOffset.UTC).toEpochMilli());
+        updated.put(expected, versionStart, expected.length - versionStart);
+        Long result;
+        try {
+            result = byteRedisTemplate.execute(REBUILD_STATE_SCRIPT, Collections.singletonList(key)
+                    , expected, Arrays.copyOf(updated.array(), versionStart));
+        } catch (RuntimeException e) {
+            //重建状态只是提示,修改失败不影响重建
+            log.warn("修改缓存重建状态失败, key: {}", key, e);
+            return null;
+        }
+        return result != null && result == 1 ? updated.array() : null;
+    }
+
+    /**
+     * 根据指定的key查询缓存,在过期之前概率性地提前刷新(XFetch),解决热点key同时过期的问题
+     * 距离过期时间越近、重建耗时越长,提前刷新的概率越大,刷新在后台完成,请求不需要等待
+     * 缓存不存在时同步查询数据库,利用缓存空值的方式解决缓存穿透问题
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param dbFallback
+     * @param time      缓存持续时间
+     * @param unit
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    public <R, ID> R queryWithRefreshAhead(String keyPrefix, ID id, Class<R> type
+            , Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        //过滤器判定不存在,直接返回
+        if (isFiltered(keyPrefix, id)) {
+            return null;
         }
-        //若锁获取失败,返回过期的信息
+        String key = keyPrefix + id;
+        //0.先查本地缓存,本地缓存中存的是反序列化后的RedisData,同样需要判断是否提前刷新
+        Object local = getLocal(key);
+        if (local instanceof RedisData && type.isInstance(((RedisData) local).getData())) {
+            RedisData localData = (RedisData) local;
+            if (localData.getExpireTime().isAfter(LocalDateTime.now())) {
+                refreshIfNeeded(keyPrefix, id, localData, dbFallback, time, unit);
+                record(keyPrefix, CacheMetrics.RESULT_LOCAL_HIT);
+                return type.cast(localData.getData());
+            }
+        }
+        //redis不可用,进入降级模式
+        if (!redisHealthProbe.isAvailable()) {
+            return queryDegraded(keyPrefix, id, type, dbFallback);
+        }
+        //1.从redis查询缓存
+        byte[] bytes = redisGet(key);
+        if (bytes != null && bytes.length == 0) {
+            //命中空值
+            record(keyPrefix, CacheMetrics.RESULT_NULL_HIT);
+            return null;
+        }
+        RedisData redisData = bytes == null ? null : decodeLogic(bytes, type);
+        if (redisData != null && redisData.getExpireTime() != null && type.isInstance(redisData.getData())) {
+            //2.命中,判断是否需要提前刷新
+            record(keyPrefix, CacheMetrics.RESULT_HIT);
+            putLocal(key, redisData);
+            refreshIfNeeded(keyPrefix, id, redisData, dbFallback, time, unit);
+            return type.cast(redisData.getData());
+        }
+        record(keyPrefix, CacheMetrics.RESULT_MISS);
+
+        //3.未命中,同一节点内只有一个线程查询数据库
+        return singleFlight.execute(key, () -> {
+            R r = loadAndRefresh(keyPrefix, id, dbFallback, time, unit);
+            if (r == null && !penetrationFilters.containsKey(keyPrefix)) {
+                //将""写入redis中,防止以后再访问数据库
+                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            }
+            return r;
+        });
+    }
+
+    /**
+     * XFetch: now - delta * beta * ln(rand) >= expire 时提前刷新
+     * delta为该keyPrefix重建缓存的平均耗时,rand为(0,1]之间的随机数
+     * @param keyPrefix
+     * @param id
+     * @param redisData
+     * @param dbFallback
+     * @param time
+     * @param unit
+     * @param <R>
+     * @param <ID>
+     */
+    private <R, ID> void refreshIfNeeded(String keyPrefix, ID id, RedisData redisData
+            , Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        if (!redisHealthProbe.isAvailable()) {
+            return;
+        }
+        long expireMillis = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long delta = rebuildCostMillis.getOrDefault(keyPrefix, 0L);
+        double gap = -delta * refreshAheadBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        if (System.currentTimeMillis() + gap < expireMillis) {
+            return;
+        }
+        //同一节点内同一个key只会提交一次,队列已满时等到下一次访问再尝试
+        String key = keyPrefix + id;
+        if (cacheRebuildScheduler.submit(key, () -> loadAndRefresh(keyPrefix, id, dbFallback, time, unit))) {
+            refreshAheadCount.increment();
+        }
+    }
+
+    /**
+     * 查询数据库并写入带过期时间头部的缓存,同时记录重建的耗时
+     * @param keyPrefix
+     * @param id
+     * @param dbFallback
+     * @param time
+     * @param unit
+     * @return 数据库中不存在时删除缓存并返回null
+     * @param <R>
+     * @param <ID>
+     */
+    private <R, ID> R loadAndRefresh(String keyPrefix, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        long start = System.nanoTime();
+        R r;
+        try {
+            r = loadFromDb(keyPrefix, id, dbFallback);
+        } catch (CircuitBreaker.RejectedException e) {
+            //数据库不可用,返回最近一次的数据
+            return staleOrThrow(keyPrefix, key, e);
+        }
+        if (r == null) {
+            delete(key);
+            return null;
+        }
+        setWithRefreshAhead(key, r, time, unit);
+        //按 7:1 的权重平滑重建耗时,包含查询数据库和写入redis
+        long cost = System.nanoTime() - start;
+        cacheMetrics.rebuild(keyPrefix, cost);
+        rebuildCostMillis.merge(keyPrefix, TimeUnit.NANOSECONDS.toMillis(cost), (old, c) -> (old * 7 + c) / 8);
+        //写入本地缓存
+        RedisData redisData = new RedisData();
+        redisData.setData(r);
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        putLocal(key, redisData);
         return r;
     }
+
+    /**
+     * 写入本地缓存
+     * @param key
+     * @param value
+     */
+    private void putLocal(String key, Object value) {
+        if (localCache != null) {
+            localCache.put(key, value);
+        }
+        //保留最近一次的数据,数据库不可用时使用
+        staleCache.put(key, value instanceof RedisData ? ((RedisData) value).getData() : value);
+        //热点key额外保存一份短期的副本,即使没有开启本地缓存也不再访问redis
+        if (hotKeyDetector.isHot(key)) {
+            hotCache.put(key, value);
+        }
+    }
+
+    /**
+     * 查询本地缓存,同时记录访问次数用于探测热点key
+     * @param key
+     * @return 未命中返回null
+     */
+    private Object getLocal(String key) {
+        if (hotKeyDetector.record(key)) {
+            Object hot = hotCache.get(key);
+            if (hot != null) {
+                return hot;
+            }
+        }
+        return localCache == null ? null : localCache.get(key);
+    }
+
+    /**
+     * 删除本节点的本地缓存和热点key副本
+     * @param key
+     */
+    private void removeLocal(String key) {
+        if (localCache != null) {
+            localCache.remove(key);
+        }
+        hotCache.remove(key);
+        staleCache.remove(key);
+    }
 }
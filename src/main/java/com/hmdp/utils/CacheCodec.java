@@ -0,0 +1,59 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码器
+ * CacheClient使用配置的编解码器写入,读取时根据数据头部判断由哪个编解码器解码,方便在不同格式之间平滑迁移
+ */
+public interface CacheCodec {
+
+    /**
+     * 编解码器名称,对应配置 hmdp.cache.codec.type
+     * @return
+     */
+    String name();
+
+    /**
+     * 判断数据是否由当前编解码器编码
+     * @param bytes 非空的redis数据
+     * @return
+     */
+    boolean supports(byte[] bytes);
+
+    /**
+     * 将对象编码为字节数组
+     * @param value
+     * @return
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 将字节数组解码为指定类型的对象
+     * @param bytes
+     * @param type
+     * @return 数据格式与type不匹配时返回null,调用方按未命中处理
+     * @param <T>
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 编码带逻辑过期时间的数据
+     * @param redisData
+     * @return
+     */
+    byte[] encodeLogic(RedisData redisData);
+
+    /**
+     * 解码带逻辑过期时间的数据,data会被解码为指定类型
+     * @param bytes
+     * @param type  data的类型
+     * @return 数据格式与type不匹配时返回null
+     */
+    RedisData decodeLogic(byte[] bytes, Class<?> type);
+
+    /**
+     * 只读取逻辑过期数据的头部,不解析数据本身
+     * @param bytes
+     * @return 不支持只读头部的格式(例如json)返回null,调用方需要完整解码
+     */
+    CacheHeader readHeader(byte[] bytes);
+}
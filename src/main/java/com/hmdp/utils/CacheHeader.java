@@ -0,0 +1,24 @@
+package com.hmdp.utils;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * 逻辑过期数据的头部信息,不需要解析数据本身即可读取
+ */
+@Data
+public class CacheHeader {
+
+    //正常状态
+    public static final byte STATE_NORMAL = 0;
+    //有节点正在重建
+    public static final byte STATE_REBUILDING = 1;
+
+    //逻辑过期时间
+    private LocalDateTime expireTime;
+    //数据版本
+    private long version;
+    //重建状态
+    private byte rebuildState;
+}
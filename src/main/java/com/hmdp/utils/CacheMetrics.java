@@ -0,0 +1,170 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CacheClient的监控指标,全部按keyPrefix打标签,通过 /actuator/prometheus 暴露
+ * keyPrefix的数量是有限的(例如cache:shop:),不会造成标签爆炸
+ */
+@Component
+public class CacheMetrics {
+
+    //查询结果
+    public static final String RESULT_LOCAL_HIT = "local_hit";
+    public static final String RESULT_HIT = "hit";
+    public static final String RESULT_NULL_HIT = "null_hit";
+    public static final String RESULT_MISS = "miss";
+    //redis不可用时,使用了最近一次的数据/没有最近一次的数据
+    public static final String RESULT_DEGRADED = "degraded";
+    public static final String RESULT_DEGRADED_MISS = "degraded_miss";
+
+    private final MeterRegistry registry;
+
+    //已注册的指标,指标名+标签 -> 指标,避免每次都到registry中查找
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> summaries = new ConcurrentHashMap<>();
+
+    public CacheMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * 记录一次查询的结果
+     * @param keyPrefix
+     * @param result    local_hit/hit/null_hit/miss/degraded/degraded_miss
+     */
+    public void request(String keyPrefix, String result) {
+        counters.computeIfAbsent("cache.requests|" + keyPrefix + "|" + result, k -> Counter.builder("cache.requests")
+                .description("缓存查询次数")
+                .tag("keyPrefix", keyPrefix)
+                .tag("result", result)
+                .register(registry)).increment();
+    }
+
+    /**
+     * 逻辑过期后返回了旧数据
+     * @param keyPrefix
+     */
+    public void staleServed(String keyPrefix) {
+        counter("cache.stale", "逻辑过期后返回旧数据的次数", keyPrefix).increment();
+    }
+
+    /**
+     * 缓存重建时数据已被更新过,放弃写入
+     * @param keyPrefix
+     */
+    public void staleWriteRejected(String keyPrefix) {
+        counter("cache.write.rejected", "版本号落后而放弃写入的次数", keyPrefix).increment();
+    }
+
+    /**
+     * 获取重建锁失败
+     * @param keyPrefix
+     */
+    public void lockFailed(String keyPrefix) {
+        counter("cache.lock.failures", "获取重建锁失败的次数", keyPrefix).increment();
+    }
+
+    /**
+     * 记录一次缓存重建(查询数据库并写回redis)的耗时
+     * @param keyPrefix
+     * @param nanos
+     */
+    public void rebuild(String keyPrefix, long nanos) {
+        timer("cache.rebuild", "缓存重建耗时", keyPrefix).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 记录一次查询数据库的耗时
+     * @param keyPrefix
+     * @param nanos
+     */
+    public void dbFallback(String keyPrefix, long nanos) {
+        timer("cache.db.fallback", "查询数据库耗时", keyPrefix).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 查询数据库被熔断器拒绝或失败
+     * @param keyPrefix
+     * @param reason    open/bulkhead/timeout/error
+     */
+    public void dbRejected(String keyPrefix, String reason) {
+        counters.computeIfAbsent("cache.db.rejected|" + keyPrefix + "|" + reason, k -> Counter.builder("cache.db.rejected")
+                .description("查询数据库被拒绝或失败的次数")
+                .tag("keyPrefix", keyPrefix)
+                .tag("reason", reason)
+                .register(registry)).increment();
+    }
+
+    /**
+     * 数据库不可用时返回了最近一次的数据
+     * @param keyPrefix
+     */
+    public void staleOnError(String keyPrefix) {
+        counter("cache.stale.on.error", "数据库不可用时返回旧数据的次数", keyPrefix).increment();
+    }
+
+    /**
+     * 注册熔断器的状态和剩余并发数
+     * @param keyPrefix
+     * @param breaker
+     */
+    public void breaker(String keyPrefix, CircuitBreaker breaker) {
+        Gauge.builder("cache.breaker.state", breaker, CircuitBreaker::getState)
+                .description("熔断器状态: 0关闭 1打开 2半开")
+                .tag("keyPrefix", keyPrefix)
+                .register(registry);
+        Gauge.builder("cache.breaker.available.permits", breaker, CircuitBreaker::getAvailablePermits)
+                .description("还可以同时查询数据库的数量")
+                .tag("keyPrefix", keyPrefix)
+                .register(registry);
+    }
+
+    /**
+     * 记录写入redis的数据大小
+     * @param keyPrefix
+     * @param bytes
+     */
+    public void valueSize(String keyPrefix, int bytes) {
+        summaries.computeIfAbsent(keyPrefix, k -> DistributionSummary.builder("cache.value.size")
+                .description("写入缓存的数据大小")
+                .baseUnit("bytes")
+                .tag("keyPrefix", keyPrefix)
+                .publishPercentileHistogram()
+                .register(registry)).record(bytes);
+    }
+
+    private Counter counter(String name, String description, String keyPrefix) {
+        return counters.computeIfAbsent(name + "|" + keyPrefix, k -> Counter.builder(name)
+                .description(description)
+                .tag("keyPrefix", keyPrefix)
+                .register(registry));
+    }
+
+    private Timer timer(String name, String description, String keyPrefix) {
+        return timers.computeIfAbsent(name + "|" + keyPrefix, k -> Timer.builder(name)
+                .description(description)
+                .tag("keyPrefix", keyPrefix)
+                .publishPercentileHistogram()
+                .register(registry));
+    }
+
+    /**
+     * 从key中截取keyPrefix,即最后一个':'及之前的部分
+     * @param key
+     * @return
+     */
+    public static String prefixOf(String key) {
+        return key.substring(0, key.lastIndexOf(':') + 1);
+    }
+}
@@ -0,0 +1,180 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 全局共享的缓存重建调度器
+ * 1.同一个key排队或执行中时不会重复提交
+ * 2.排队的任务按访问次数排序,访问越多越先重建
+ * 3.线程数即数据库并发上限,队列已满时拒绝,调用方继续返回过期数据
+ */
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+
+    //同时重建的最大数量,即访问数据库的并发上限
+    @Value("${hmdp.cache.rebuild.db-concurrency:10}")
+    private int dbConcurrency;
+
+    //排队的最大任务数
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+
+    private ThreadPoolExecutor executor;
+
+    //排队或执行中的任务,key -> 任务
+    private final ConcurrentHashMap<String, RebuildTask> pending = new ConcurrentHashMap<>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    //统计
+    private final LongAdder submittedCount = new LongAdder();
+    private final LongAdder deduplicatedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder completedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final LongAdder totalRunNanos = new LongAdder();
+    private final AtomicLong maxRunNanos = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(dbConcurrency, dbConcurrency, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(),
+                r -> {
+                    Thread thread = new Thread(r, "cache-rebuild-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 提交重建任务
+     * @param key   缓存的key,同一个key同时只会有一个任务
+     * @param task  重建逻辑
+     * @return false代表队列已满被拒绝
+     */
+    public boolean submit(String key, Runnable task) {
+        RebuildTask existing = pending.get(key);
+        if (existing != null) {
+            //已经在排队或执行中,只增加访问次数
+            existing.hit();
+            deduplicatedCount.increment();
+            return true;
+        }
+        if (pending.size() >= queueCapacity) {
+            rejectedCount.increment();
+            return false;
+        }
+        RebuildTask rebuildTask = new RebuildTask(key, task);
+        existing = pending.putIfAbsent(key, rebuildTask);
+        if (existing != null) {
+            existing.hit();
+            deduplicatedCount.increment();
+            return true;
+        }
+        submittedCount.increment();
+        executor.execute(rebuildTask);
+        return true;
+    }
+
+    /**
+     * 判断key是否正在排队或重建中
+     * @param key
+     * @return
+     */
+    public boolean isPending(String key) {
+        return pending.containsKey(key);
+    }
+
+    /**
+     * 队列深度和重建耗时统计
+     * @return
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long completed = completedCount.sum() + failedCount.sum();
+        stats.put("queueDepth", executor.getQueue().size());
+        stats.put("active", executor.getActiveCount());
+        stats.put("submitted", submittedCount.sum());
+        stats.put("deduplicated", deduplicatedCount.sum());
+        stats.put("rejected", rejectedCount.sum());
+        stats.put("completed", completedCount.sum());
+        stats.put("failed", failedCount.sum());
+        stats.put("avgWaitMillis", completed == 0 ? 0D : totalWaitNanos.sum() / 1e6 / completed);
+        stats.put("avgRunMillis", completed == 0 ? 0D : totalRunNanos.sum() / 1e6 / completed);
+        stats.put("maxRunMillis", maxRunNanos.get() / 1e6);
+        return stats;
+    }
+
+    /**
+     * 重建任务,按访问次数从多到少执行,次数相同时先提交的先执行
+     */
+    private class RebuildTask implements Runnable, Comparable<RebuildTask> {
+        private final String key;
+        private final Runnable task;
+        private final long seq = sequence.incrementAndGet();
+        private final long submitTime = System.nanoTime();
+        private final AtomicLong hits = new AtomicLong(1);
+        //在队列中排序用的优先级,只在任务不在队列中时修改
+        private volatile long priority = 1;
+
+        RebuildTask(String key, Runnable task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        void hit() {
+            long h = hits.incrementAndGet();
+            //访问次数每翻一倍调整一次在队列中的位置,避免频繁移动
+            if ((h & (h - 1)) == 0 && executor.getQueue().remove(this)) {
+                priority = h;
+                executor.getQueue().offer(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            totalWaitNanos.add(start - submitTime);
+            try {
+                task.run();
+                completedCount.increment();
+            } catch (Exception e) {
+                failedCount.increment();
+                log.error("缓存重建异常, key: {}", key, e);
+            } finally {
+                long cost = System.nanoTime() - start;
+                totalRunNanos.add(cost);
+                maxRunNanos.accumulateAndGet(cost, Math::max);
+                pending.remove(key, this);
+            }
+        }
+
+        @Override
+        public int compareTo(RebuildTask other) {
+            int c = Long.compare(other.priority, priority);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+}
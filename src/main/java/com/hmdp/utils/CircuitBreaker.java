@@ -0,0 +1,174 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 熔断器+舱壁,保护缓存未命中时对数据库的查询
+ * 1.连续失败(异常或超时)达到阈值后熔断,熔断期间直接拒绝,过了熔断时间后放行一个请求试探
+ * 2.同时执行的查询数量有上限,超过后直接拒绝,不排队
+ * 3.查询在独立的线程中执行,超时后调用方不再等待
+ */
+public class CircuitBreaker {
+
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    //拒绝的原因
+    public static final String REASON_OPEN = "open";
+    public static final String REASON_BULKHEAD = "bulkhead";
+    public static final String REASON_TIMEOUT = "timeout";
+    public static final String REASON_ERROR = "error";
+
+    //连续失败多少次后熔断
+    private final int failureThreshold;
+    //熔断的时间,单位毫秒
+    private final long openMillis;
+    //查询的超时时间,单位毫秒
+    private final long timeoutMillis;
+    //同时执行的查询数量上限
+    private final Semaphore bulkhead;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile int state = STATE_CLOSED;
+    private volatile long openedAt;
+    //半开状态下是否已经有请求在试探
+    private final AtomicBoolean trialRunning = new AtomicBoolean();
+
+    public CircuitBreaker(int failureThreshold, long openMillis, long timeoutMillis, int maxConcurrent) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.bulkhead = new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * 在熔断器的保护下执行查询
+     * @param supplier  查询逻辑
+     * @param executor  执行查询的线程池
+     * @return
+     * @param <T>
+     * @throws RejectedException 熔断、舱壁已满、超时或查询异常
+     */
+    public <T> T call(Supplier<T> supplier, Executor executor) {
+        boolean trial = acquirePermission();
+        if (!bulkhead.tryAcquire()) {
+            if (trial) {
+                trialRunning.set(false);
+            }
+            throw new RejectedException(REASON_BULKHEAD, null);
+        }
+        FutureTask<T> task = new FutureTask<>(supplier::get);
+        try {
+            //许可在查询真正结束时才归还,超时的查询仍然占用舱壁
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    bulkhead.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //线程池已满与舱壁已满一样直接拒绝,不代表数据库故障,不计入失败次数
+            bulkhead.release();
+            if (trial) {
+                trialRunning.set(false);
+            }
+            throw new RejectedException(REASON_BULKHEAD, e);
+        }
+        try {
+            T value = task.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            onSuccess(trial);
+            return value;
+        } catch (TimeoutException e) {
+            task.cancel(true);
+            onFailure(trial);
+            throw new RejectedException(REASON_TIMEOUT, e);
+        } catch (ExecutionException e) {
+            onFailure(trial);
+            throw new RejectedException(REASON_ERROR, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.cancel(true);
+            onFailure(trial);
+            throw new RejectedException(REASON_ERROR, e);
+        }
+    }
+
+    /**
+     * 判断是否允许执行
+     * @return 是否为半开状态下的试探请求
+     */
+    private boolean acquirePermission() {
+        if (state == STATE_CLOSED) {
+            return false;
+        }
+        if (state == STATE_OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            state = STATE_HALF_OPEN;
+        }
+        //半开状态只放行一个请求试探
+        if (state == STATE_HALF_OPEN && trialRunning.compareAndSet(false, true)) {
+            return true;
+        }
+        throw new RejectedException(REASON_OPEN, null);
+    }
+
+    /**
+     * 只有试探请求或关闭状态下的请求成功才生效
+     * 熔断前已经开始的慢查询在熔断期间返回成功,不代表数据库已经恢复,不能结束熔断
+     * @param trial 是否为半开状态下的试探请求
+     */
+    private void onSuccess(boolean trial) {
+        if (trial || state == STATE_CLOSED) {
+            consecutiveFailures.set(0);
+            state = STATE_CLOSED;
+        }
+        if (trial) {
+            trialRunning.set(false);
+        }
+    }
+
+    private void onFailure(boolean trial) {
+        if (trial || consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            openedAt = System.currentTimeMillis();
+            state = STATE_OPEN;
+        }
+        if (trial) {
+            trialRunning.set(false);
+        }
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public int getAvailablePermits() {
+        return bulkhead.availablePermits();
+    }
+
+    /**
+     * 查询被熔断器拒绝或执行失败
+     */
+    public static class RejectedException extends RuntimeException {
+
+        private final String reason;
+
+        public RejectedException(String reason, Throwable cause) {
+            super("数据库查询被拒绝: " + reason, cause);
+            this.reason = reason;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+}
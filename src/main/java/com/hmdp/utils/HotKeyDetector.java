@@ -0,0 +1,179 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 进程内的热点key探测器
+ * 用滑动窗口的Count-Min Sketch统计每个key最近的访问次数,窗口被切分为多个时间片,定时淘汰最旧的时间片
+ * Count-Min Sketch只会高估不会低估,占用的内存与key的数量无关
+ */
+@Component
+public class HotKeyDetector {
+
+    //哈希函数的个数,即sketch的行数
+    private static final int DEPTH = 4;
+
+    //sketch每行的宽度,会向上取整为2的幂
+    @Value("${hmdp.cache.hot-key.width:4096}")
+    private int width;
+
+    //窗口被切分的时间片数量
+    @Value("${hmdp.cache.hot-key.slices:6}")
+    private int sliceCount;
+
+    //一个窗口内访问次数达到该值即为热点key
+    @Value("${hmdp.cache.hot-key.threshold:1000}")
+    private int threshold;
+
+    //保留的候选key数量,查询top-K时从中选取
+    @Value("${hmdp.cache.hot-key.top-k:100}")
+    private int topK;
+
+    private int mask;
+
+    //每个时间片一个sketch,下标为 行 * width + 列
+    private AtomicIntegerArray[] slices;
+
+    //当前写入的时间片
+    private volatile int current;
+
+    //访问次数较多的候选key,key -> 上一次统计的访问次数
+    private final Map<String, Integer> candidates = new ConcurrentHashMap<>();
+
+    //候选key中访问次数的最小值,超过它的key才能成为候选
+    private volatile int candidateFloor;
+
+    //当前的热点key
+    private final Set<String> hotKeys = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    private void init() {
+        int w = Integer.highestOneBit(Math.max(width, 16) - 1) << 1;
+        mask = w - 1;
+        slices = new AtomicIntegerArray[sliceCount];
+        for (int i = 0; i < sliceCount; i++) {
+            slices[i] = new AtomicIntegerArray(DEPTH * w);
+        }
+    }
+
+    /**
+     * 记录一次访问
+     * @param key
+     * @return 是否为热点key
+     */
+    public boolean record(String key) {
+        long hash = mix(key.hashCode());
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        AtomicIntegerArray slice = slices[current];
+        for (int i = 0; i < DEPTH; i++) {
+            slice.incrementAndGet(i * (mask + 1) + ((h1 + i * h2) & mask));
+        }
+        //访问次数足够多时才计入候选,避免候选集合被冷key填满
+        int count = estimate(h1, h2);
+        if (count > candidateFloor || candidates.size() < topK) {
+            candidates.put(key, count);
+        }
+        if (count >= threshold) {
+            hotKeys.add(key);
+            return true;
+        }
+        return hotKeys.contains(key);
+    }
+
+    /**
+     * 判断是否为热点key
+     * @param key
+     * @return
+     */
+    public boolean isHot(String key) {
+        return hotKeys.contains(key);
+    }
+
+    /**
+     * 估算key在窗口内的访问次数
+     * @param key
+     * @return
+     */
+    public int estimate(String key) {
+        long hash = mix(key.hashCode());
+        return estimate((int) hash, (int) (hash >>> 32) | 1);
+    }
+
+    private int estimate(int h1, int h2) {
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = i * (mask + 1) + ((h1 + i * h2) & mask);
+            int sum = 0;
+            for (AtomicIntegerArray slice : slices) {
+                sum += slice.get(index);
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    /**
+     * 访问次数最多的k个key
+     * @param k
+     * @return key -> 窗口内的访问次数,按次数从多到少排列
+     */
+    public Map<String, Integer> topKeys(int k) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>();
+        for (String key : candidates.keySet()) {
+            entries.add(new AbstractMap.SimpleEntry<>(key, estimate(key)));
+        }
+        entries.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        Map<String, Integer> top = new LinkedHashMap<>();
+        for (int i = 0; i < entries.size() && i < k; i++) {
+            top.put(entries.get(i).getKey(), entries.get(i).getValue());
+        }
+        return top;
+    }
+
+    /**
+     * 滑动窗口:清空最旧的时间片并切换写入,然后重新计算候选key和热点key
+     */
+    @Scheduled(fixedRateString = "${hmdp.cache.hot-key.slice-millis:10000}")
+    public void rotate() {
+        int next = (current + 1) % sliceCount;
+        AtomicIntegerArray slice = slices[next];
+        for (int i = 0; i < slice.length(); i++) {
+            slice.set(i, 0);
+        }
+        current = next;
+
+        //只保留访问次数最多的topK个候选key
+        Map<String, Integer> top = topKeys(topK);
+        candidates.keySet().retainAll(top.keySet());
+        candidates.putAll(top);
+        candidateFloor = top.size() < topK ? 0 : Collections.min(top.values());
+        //访问次数降到阈值以下的key不再是热点
+        hotKeys.removeIf(key -> top.getOrDefault(key, 0) < threshold);
+    }
+
+    /**
+     * murmur3的混淆函数
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
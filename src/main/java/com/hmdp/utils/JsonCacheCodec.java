@@ -0,0 +1,65 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+/**
+ * 基于hutool json的编解码器,兼容原有的json格式缓存
+ */
+@Component
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final String NAME = "json";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        //json对象以'{'开头
+        return bytes[0] == '{';
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public byte[] encodeLogic(RedisData redisData) {
+        return encode(redisData);
+    }
+
+    @Override
+    public RedisData decodeLogic(byte[] bytes, Class<?> type) {
+        //只解析一次json,再把data转为指定类型
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(json.get("expireTime", LocalDateTime.class));
+        JSONObject data = json.getJSONObject("data");
+        if (redisData.getExpireTime() == null || data == null) {
+            //不是逻辑过期格式的数据
+            return null;
+        }
+        redisData.setData(data.toBean(type));
+        redisData.setVersion(json.getLong("version"));
+        return redisData;
+    }
+
+    @Override
+    public CacheHeader readHeader(byte[] bytes) {
+        //json必须完整解析才能拿到过期时间
+        return null;
+    }
+}
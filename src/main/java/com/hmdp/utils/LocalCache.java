@@ -0,0 +1,64 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内的本地缓存(L1),容量满时按LRU淘汰,写入超过timeout后过期
+ * 缓存的是已经反序列化好的对象,命中时不需要再访问Redis和解析json
+ */
+public class LocalCache {
+
+    private final LRUCache<String, Object> cache;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     * @param capacity  最大容量
+     * @param timeout   写入后的存活时间,单位毫秒
+     */
+    public LocalCache(int capacity, long timeout) {
+        this.cache = CacheUtil.newLRUCache(capacity, timeout);
+    }
+
+    /**
+     * 查询本地缓存,不会刷新访问时间,保证写入timeout后一定过期
+     * @param key
+     * @return 未命中返回null
+     */
+    public Object get(String key) {
+        Object value = cache.get(key, false);
+        if (value == null) {
+            missCount.increment();
+        } else {
+            hitCount.increment();
+        }
+        return value;
+    }
+
+    public void put(String key, Object value) {
+        if (value == null) {
+            return;
+        }
+        cache.put(key, value);
+    }
+
+    public void remove(String key) {
+        cache.remove(key);
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+}
@@ -0,0 +1,68 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.codec.Base64;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.CursorResult;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * 游标分页(seek)的游标,由排序字段和id组成,对客户端不透明
+ * 下一页的条件是 (sortKey, id) 排在上一页最后一条之后,配合 (排序字段, id) 的联合索引,
+ * 不需要COUNT,也没有深度的 LIMIT offset,查询任意一页的开销与第一页相同
+ */
+@Data
+@AllArgsConstructor
+public class PageCursor {
+
+    //排序字段的值,只按id排序时与id相同
+    private long sortKey;
+    private long id;
+
+    /**
+     * 编码为客户端使用的游标
+     * @return
+     */
+    public String encode() {
+        return Base64.encodeUrlSafe(sortKey + ":" + id);
+    }
+
+    /**
+     * 解析客户端传来的游标
+     * @param cursor
+     * @return 为空(第一页)或无法解析时返回null,调用方用StrUtil.isNotBlank区分两种情况
+     */
+    public static PageCursor decode(String cursor) {
+        if (StrUtil.isBlank(cursor)) {
+            return null;
+        }
+        try {
+            String text = Base64.decodeStr(cursor);
+            int i = text.indexOf(':');
+            return new PageCursor(Long.parseLong(text.substring(0, i)), Long.parseLong(text.substring(i + 1)));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 封装一页的结果,查询时多查一条,多出来的那条存在说明还有下一页
+     * @param rows      按排序查询的 size + 1 条数据
+     * @param size      每页的数量
+     * @param cursorOf  根据一条数据生成游标
+     * @return
+     * @param <T>
+     */
+    public static <T> CursorResult page(List<T> rows, int size, Function<T, PageCursor> cursorOf) {
+        CursorResult r = new CursorResult();
+        if (rows.size() > size) {
+            rows = rows.subList(0, size);
+            r.setCursor(cursorOf.apply(rows.get(size - 1)).encode());
+        }
+        r.setList(rows);
+        return r;
+    }
+}
@@ -8,4 +8,6 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    //数据版本,为null时由编解码器根据数据内容生成
+    private Long version;
 }
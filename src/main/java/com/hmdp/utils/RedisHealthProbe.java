@@ -0,0 +1,118 @@
+package com.hmdp.utils;
+
+import io.lettuce.core.RedisCommandTimeoutException;
+import io.lettuce.core.RedisConnectionException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Redis健康探测
+ * 定时PING Redis,连续失败达到阈值或业务调用遇到连接异常时进入降级模式,PING成功后自动恢复
+ * 降级模式下读请求使用本地缓存和限流后的数据库,依赖Redis的写操作直接失败
+ */
+@Slf4j
+@Component
+public class RedisHealthProbe {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //连续失败多少次后进入降级模式
+    @Value("${hmdp.redis.probe.failure-threshold:2}")
+    private int failureThreshold;
+
+    private volatile boolean available = true;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    //从降级模式恢复时执行的回调
+    private final List<Runnable> recoveryListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Redis当前是否可用
+     * @return false代表处于降级模式
+     */
+    public boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * 注册从降级模式恢复时执行的回调
+     * @param listener
+     */
+    public void addRecoveryListener(Runnable listener) {
+        recoveryListeners.add(listener);
+    }
+
+    /**
+     * 判断异常是否为Redis不可用(连接失败或命令超时)
+     * @param e
+     * @return
+     */
+    public static boolean isUnavailable(Throwable e) {
+        //异步调用的异常会被CompletionException等包装,需要检查cause
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof RedisConnectionFailureException || t instanceof QueryTimeoutException
+                    || t instanceof RedisConnectionException || t instanceof RedisCommandTimeoutException) {
+                return true;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 业务调用遇到连接失败或超时,立即进入降级模式,不必等下一次探测
+     * @param e
+     */
+    public void reportFailure(Throwable e) {
+        if (available) {
+            available = false;
+            log.warn("Redis不可用,进入降级模式: {}", e.toString());
+        }
+    }
+
+    /**
+     * 定时探测
+     */
+    @Scheduled(fixedDelayString = "${hmdp.redis.probe.interval:1000}")
+    public void probe() {
+        try {
+            String pong = stringRedisTemplate.execute((RedisCallback<String>) RedisConnection::ping);
+            if (!"PONG".equalsIgnoreCase(pong)) {
+                throw new IllegalStateException("PING返回: " + pong);
+            }
+        } catch (Exception e) {
+            if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+                reportFailure(e);
+            }
+            return;
+        }
+        consecutiveFailures.set(0);
+        if (!available) {
+            available = true;
+            log.info("Redis已恢复,退出降级模式");
+            for (Runnable listener : recoveryListeners) {
+                try {
+                    listener.run();
+                } catch (Exception e) {
+                    log.error("执行恢复回调异常", e);
+                }
+            }
+        }
+    }
+}
@@ -15,14 +15,24 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 
     private StringRedisTemplate stringRedisTemplate;
 
+    private RedisHealthProbe redisHealthProbe;
+
+    //token -> 最近一次从redis查询到的用户,只在redis不可用时使用,避免已登录的用户全部变成未登录
+    private LocalCache loginCache;
+
     /**
      * 这里只能用构造函数注入,因为LoginInterceptor的对象是自己手动new出来的
      * 由spring创建的对象可以使用@Resource等进行注入
      * 自己手动创建的对象需要自己注入
      * @param stringRedisTemplate
+     * @param redisHealthProbe
+     * @param loginCache
      */
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
+    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate, RedisHealthProbe redisHealthProbe
+            , LocalCache loginCache) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisHealthProbe = redisHealthProbe;
+        this.loginCache = loginCache;
     }
 
     /**
@@ -41,20 +51,34 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
             //若不存在直接放行
             return true;
         }
+        //redis不可用时使用本地保留的用户,本地没有时按未登录放行,不需要登录的接口仍然可以访问
+        if (!redisHealthProbe.isAvailable()) {
+            return useLocalUser(token);
+        }
         //2.基于token获取redis中的用户
         String key = RedisConstants.LOGIN_USER_KEY + token;
         //  entries可以取出hash中所有键值对
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash()
-                .entries(key);
+        Map<Object, Object> userMap;
+        try {
+            userMap = stringRedisTemplate.opsForHash().entries(key);
+        } catch (RuntimeException e) {
+            if (!RedisHealthProbe.isUnavailable(e)) {
+                throw e;
+            }
+            redisHealthProbe.reportFailure(e);
+            return useLocalUser(token);
+        }
 
         //3.判断用户是否存在
         if (userMap.isEmpty()) {
-            //若不存在,直接放行
+            //若不存在,已经退出或过期,同时删除本地保留的用户,直接放行
+            loginCache.remove(token);
             return true;
         }
 
-        //5.将查询到的Hash数据转为UserDTO对象
+        //5.将查询到的Hash数据转为UserDTO对象,并保留到本地
         UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
+        loginCache.put(token, userDTO);
 
         //6.存在,保存用户信息到ThreadLocal中
         UserHolder.saveUser(userDTO);
@@ -66,6 +90,20 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         return true;
     }
 
+    /**
+     * redis不可用时,使用本地保留的用户
+     * 只有redis可用时查询成功过的token才有,存活时间较短,redis恢复后重新以redis为准
+     * @param token
+     * @return
+     */
+    private boolean useLocalUser(String token) {
+        UserDTO userDTO = (UserDTO) loginCache.get(token);
+        if (userDTO != null) {
+            UserHolder.saveUser(userDTO);
+        }
+        return true;
+    }
+
 
 
     @Override
@@ -0,0 +1,229 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_DEAD_LETTER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀相关的key,兼容Redis Cluster
+ * 优惠券按id分到N个分片,每个分片一个订单stream,同一分片的库存key、订单key、stream使用相同的hash tag {分片},
+ * 保证seckill.lua操作的key都在同一个slot中,不同分片的流量分散到集群的不同节点
+ * 分片数量修改后优惠券会映射到新的key,只能在没有进行中的秒杀时修改,且所有节点必须一致
+ * 第一个启动的节点把分片和分段数量写入redis,之后启动的节点配置不一致时拒绝启动
+ * 开启库存分段时,一张优惠券的库存拆分到K个分段,第b个分段放在分片 (优惠券id + b) mod N 中,
+ * 热门优惠券的库存不再集中在一个key上,不同分段分散到不同的slot,分段数量同样只能在没有进行中的秒杀时修改
+ * 已下单用户的key每张优惠券只有一个,所有分段共用,保证一人一单
+ */
+@Slf4j
+@Component
+public class SeckillKeys {
+
+    private static final String FIELD_SHARDS = "shards";
+    private static final String FIELD_BUCKETS = "buckets";
+
+    //订单stream的分片数量
+    @Value("${hmdp.seckill.stream.shards:4}")
+    private int shards;
+
+    //每张秒杀券的库存分段数量,1代表不分段
+    @Value("${hmdp.seckill.stock.buckets:1}")
+    private int buckets;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 校验本节点的分片和分段数量与其他节点一致
+     * 修改分片或分段数量时,需要在没有进行中的秒杀时删除redis中的 seckill:layout 后重启所有节点
+     */
+    @PostConstruct
+    private void checkLayout() {
+        String key = RedisConstants.SECKILL_LAYOUT_KEY;
+        List<Object> saved;
+        try {
+            //1.第一个启动的节点写入自己的配置 HSETNX
+            stringRedisTemplate.opsForHash().putIfAbsent(key, FIELD_SHARDS, String.valueOf(shards));
+            stringRedisTemplate.opsForHash().putIfAbsent(key, FIELD_BUCKETS, String.valueOf(getBuckets()));
+            //2.读取集群使用的配置
+            saved = stringRedisTemplate.opsForHash().multiGet(key, Arrays.asList(FIELD_SHARDS, FIELD_BUCKETS));
+        } catch (RuntimeException e) {
+            if (!RedisHealthProbe.isUnavailable(e)) {
+                throw e;
+            }
+            //redis不可用时秒杀本来就无法进行,跳过校验,不影响其他功能启动
+            log.warn("redis不可用,跳过秒杀分片配置的校验", e);
+            return;
+        }
+        //3.不一致时拒绝启动,否则同一张优惠券在不同节点会使用不同的key
+        if (!String.valueOf(shards).equals(saved.get(0)) || !String.valueOf(getBuckets()).equals(saved.get(1))) {
+            throw new IllegalStateException("秒杀分片配置与其他节点不一致, 本节点 shards=" + shards
+                    + ", buckets=" + getBuckets() + ", redis中 shards=" + saved.get(0) + ", buckets=" + saved.get(1)
+                    + ", 确认没有进行中的秒杀后删除 " + key + " 再启动");
+        }
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public int getBuckets() {
+        return Math.max(buckets, 1);
+    }
+
+    /**
+     * 用户首先尝试的库存分段,让不同用户的请求分散到不同的分段
+     * @param userId
+     * @return
+     */
+    public int bucketOf(long userId) {
+        return (int) Math.floorMod(userId, (long) getBuckets());
+    }
+
+    /**
+     * 优惠券所在的分片
+     * @param voucherId
+     * @return
+     */
+    public int shardOf(long voucherId) {
+        return (int) Math.floorMod(voucherId, (long) shards);
+    }
+
+    /**
+     * 库存分段所在的分片
+     * @param voucherId
+     * @param bucket
+     * @return
+     */
+    public int shardOf(long voucherId, int bucket) {
+        return (int) Math.floorMod(voucherId + bucket, (long) shards);
+    }
+
+    /**
+     * 库存key seckill:stock:{分片}:优惠券id
+     * @param voucherId
+     * @return
+     */
+    public String stockKey(long voucherId) {
+        return SECKILL_STOCK_KEY + tag(shardOf(voucherId)) + ":" + voucherId;
+    }
+
+    /**
+     * 已下单用户的key seckill:order:{分片}:优惠券id
+     * @param voucherId
+     * @return
+     */
+    public String orderKey(long voucherId) {
+        return SECKILL_ORDER_KEY + tag(shardOf(voucherId)) + ":" + voucherId;
+    }
+
+    /**
+     * 分片之前的库存key seckill:stock:优惠券id,只用于把旧数据迁移到分片的key
+     * @param voucherId
+     * @return
+     */
+    public String legacyStockKey(long voucherId) {
+        return SECKILL_STOCK_KEY + voucherId;
+    }
+
+    /**
+     * 分片之前的已下单用户的key seckill:order:优惠券id,只用于把旧数据迁移到分片的key
+     * @param voucherId
+     * @return
+     */
+    public String legacyOrderKey(long voucherId) {
+        return SECKILL_ORDER_KEY + voucherId;
+    }
+
+    /**
+     * 库存分段的库存key seckill:stock:{分片}:优惠券id:分段,不分段时与stockKey(voucherId)相同
+     * @param voucherId
+     * @param bucket
+     * @return
+     */
+    public String stockKey(long voucherId, int bucket) {
+        if (getBuckets() == 1) {
+            return stockKey(voucherId);
+        }
+        return SECKILL_STOCK_KEY + tag(shardOf(voucherId, bucket)) + ":" + voucherId + ":" + bucket;
+    }
+
+    /**
+     * 优惠券所有库存分段的库存key
+     * @param voucherId
+     * @return
+     */
+    public List<String> stockKeys(long voucherId) {
+        List<String> keys = new ArrayList<>(getBuckets());
+        for (int b = 0; b < getBuckets(); b++) {
+            keys.add(stockKey(voucherId, b));
+        }
+        return keys;
+    }
+
+    /**
+     * 分片的订单stream stream.orders:{分片}
+     * @param shard
+     * @return
+     */
+    public String streamKey(int shard) {
+        return SECKILL_ORDER_STREAM + ":" + tag(shard);
+    }
+
+    /**
+     * 分片的死信stream stream.orders.dead:{分片},保存多次处理失败或库存不足无法落库的订单消息,由人工处理
+     * @param shard
+     * @return
+     */
+    public String deadLetterKey(int shard) {
+        return SECKILL_DEAD_LETTER_STREAM + ":" + tag(shard);
+    }
+
+    /**
+     * 不分段时秒杀脚本的KEYS: 库存key、订单key、订单stream
+     * @param voucherId
+     * @return
+     */
+    public List<String> seckillKeys(long voucherId) {
+        return Arrays.asList(stockKey(voucherId), orderKey(voucherId), streamKey(shardOf(voucherId)));
+    }
+
+    /**
+     * 库存分段时扣减一个分段的脚本的KEYS: 分段的库存key、分段所在分片的订单stream
+     * @param voucherId
+     * @param bucket
+     * @return
+     */
+    public List<String> bucketKeys(long voucherId, int bucket) {
+        return Arrays.asList(stockKey(voucherId, bucket), streamKey(shardOf(voucherId, bucket)));
+    }
+
+    /**
+     * 把库存平均拆分到各个分段,除不尽的部分从第一个分段开始每段多分一个
+     * @param stock
+     * @return 每个分段的库存
+     */
+    public int[] split(int stock) {
+        int k = getBuckets();
+        int[] parts = new int[k];
+        for (int b = 0; b < k; b++) {
+            parts[b] = stock / k + (b < stock % k ? 1 : 0);
+        }
+        return parts;
+    }
+
+    private static String tag(int shard) {
+        return "{" + shard + "}";
+    }
+}
@@ -0,0 +1,78 @@
+package com.hmdp.utils;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.data.redis.connection.RedisPassword;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettucePoolingClientConfiguration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.Duration;
+
+/**
+ * 秒杀订单stream消费者专用的redis连接,地址和密码与spring.redis的配置一致
+ * 消费者阻塞在XREADGROUP BLOCK上时会一直占用连接池中的一个独占连接,与业务共用spring.redis的连接池时,
+ * workers * shards个消费者长期占住连接,业务的pipeline、MGET、lua脚本只能争抢剩下的连接,消费者数量达到上限时直接死锁
+ * 所以消费者使用单独的连接池,大小等于本节点的消费者数量
+ */
+@Component
+public class SeckillStreamRedis implements InitializingBean, DisposableBean {
+
+    //阻塞读取新消息的最长时间
+    public static final Duration BLOCK_TIMEOUT = Duration.ofSeconds(2);
+
+    //每个节点消费每个分片的线程数
+    @Value("${hmdp.seckill.consumer.workers:2}")
+    private int workers;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private RedisProperties redisProperties;
+
+    private LettuceConnectionFactory connectionFactory;
+
+    private StringRedisTemplate template;
+
+    public StringRedisTemplate getTemplate() {
+        return template;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        //1.地址和密码
+        RedisStandaloneConfiguration server = new RedisStandaloneConfiguration(
+                redisProperties.getHost(), redisProperties.getPort());
+        server.setDatabase(redisProperties.getDatabase());
+        if (redisProperties.getPassword() != null) {
+            server.setPassword(RedisPassword.of(redisProperties.getPassword()));
+        }
+        //2.连接池大小等于消费者数量,阻塞读取时每个消费者占用一个连接,其余命令共用一个连接
+        int consumers = Math.max(workers * seckillKeys.getShards(), 1);
+        GenericObjectPoolConfig<Object> pool = new GenericObjectPoolConfig<>();
+        pool.setMaxTotal(consumers);
+        pool.setMaxIdle(consumers);
+        pool.setMinIdle(0);
+        //3.命令超时时间要比阻塞读取的时间长,否则阻塞读取会超时
+        Duration timeout = redisProperties.getTimeout() == null ? Duration.ofSeconds(1) : redisProperties.getTimeout();
+        LettucePoolingClientConfiguration client = LettucePoolingClientConfiguration.builder()
+                .poolConfig(pool)
+                .commandTimeout(BLOCK_TIMEOUT.plus(timeout))
+                .build();
+        connectionFactory = new LettuceConnectionFactory(server, client);
+        connectionFactory.afterPropertiesSet();
+        template = new StringRedisTemplate(connectionFactory);
+    }
+
+    @Override
+    public void destroy() {
+        connectionFactory.destroy();
+    }
+}
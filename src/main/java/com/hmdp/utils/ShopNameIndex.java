@@ -0,0 +1,295 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 店铺名称的内存倒排索引,替代 LIKE '%name%' 的全表扫描
+ * 中文没有空格分词,按字切分为单字和相邻两字(bigram)建立倒排表,查询时要求所有n-gram都出现,效果接近子串匹配
+ * 排序时名称的权重最高,其次是商圈、地址,名称中包含完整关键字的额外加分
+ * 索引发布后不再修改,店铺变化时复制出新的索引(只复制受影响的n-gram的倒排表)后整体替换,查询不加锁
+ */
+@Component
+public class ShopNameIndex {
+
+    //各字段的权重
+    private static final int WEIGHT_NAME = 6;
+    private static final int WEIGHT_AREA = 2;
+    private static final int WEIGHT_ADDRESS = 1;
+    //名称中包含完整关键字时的加分
+    private static final int BONUS_NAME_CONTAINS = 100;
+    //名称以关键字开头时的加分
+    private static final int BONUS_NAME_PREFIX = 50;
+
+    //当前的索引,每次修改后整体替换
+    private volatile Index index = new Index();
+
+    /**
+     * 全量重建,构建期间查询使用旧的索引
+     * @param ids
+     * @param names
+     * @param areas
+     * @param addresses
+     */
+    public synchronized void replaceAll(long[] ids, String[] names, String[] areas, String[] addresses) {
+        Index built = new Index();
+        for (int i = 0; i < ids.length; i++) {
+            built.put(ids[i], names[i], areas[i], addresses[i]);
+        }
+        built.seal();
+        index = built;
+    }
+
+    /**
+     * 新增或更新一个店铺
+     * @param id
+     * @param name
+     * @param area
+     * @param address
+     */
+    public synchronized void put(long id, String name, String area, String address) {
+        //在副本上先移除旧内容再加入新内容,查询看到的要么是旧索引,要么是新索引
+        Index next = index.copy();
+        next.remove(id);
+        next.put(id, name, area, address);
+        next.seal();
+        index = next;
+    }
+
+    /**
+     * 移除一个店铺
+     * @param id
+     */
+    public synchronized void remove(long id) {
+        Index current = index;
+        if (!current.docs.containsKey(id)) {
+            return;
+        }
+        Index next = current.copy();
+        next.remove(id);
+        next.seal();
+        index = next;
+    }
+
+    public int size() {
+        return index.docs.size();
+    }
+
+    /**
+     * 搜索店铺,按相关度由高到低分页
+     * @param keyword
+     * @param from      跳过的数量
+     * @param size      每页的数量
+     * @return 当前页的店铺id
+     */
+    public List<Long> search(String keyword, int from, int size) {
+        String query = normalize(keyword);
+        if (query.isEmpty() || size <= 0) {
+            return Collections.emptyList();
+        }
+        Index idx = index;
+        //1.关键字只有一个字时用单字,否则用bigram
+        Set<String> grams = query.length() == 1 ? Collections.singleton(query) : bigrams(query);
+        List<Map<Long, Integer>> lists = new ArrayList<>(grams.size());
+        for (String gram : grams) {
+            Map<Long, Integer> postings = idx.postings.get(gram);
+            if (postings == null) {
+                //有一个n-gram不存在,一定没有匹配的店铺
+                return Collections.emptyList();
+            }
+            lists.add(postings);
+        }
+        //2.从最短的倒排表开始求交集
+        lists.sort((a, b) -> Integer.compare(a.size(), b.size()));
+        Map<Long, Integer> scores = new HashMap<>();
+        outer:
+        for (Map.Entry<Long, Integer> entry : lists.get(0).entrySet()) {
+            Long id = entry.getKey();
+            int score = entry.getValue();
+            for (int i = 1; i < lists.size(); i++) {
+                Integer weight = lists.get(i).get(id);
+                if (weight == null) {
+                    continue outer;
+                }
+                score += weight;
+            }
+            //3.名称中包含完整的关键字时加分
+            Doc doc = idx.docs.get(id);
+            if (doc != null) {
+                int pos = doc.name.indexOf(query);
+                if (pos == 0) {
+                    score += BONUS_NAME_PREFIX + BONUS_NAME_CONTAINS;
+                } else if (pos > 0) {
+                    score += BONUS_NAME_CONTAINS;
+                }
+            }
+            scores.put(id, score);
+        }
+        if (scores.size() <= from) {
+            return Collections.emptyList();
+        }
+        //4.按分数排序,分数相同时id小的在前,保证分页稳定
+        List<Map.Entry<Long, Integer>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort((a, b) -> a.getValue().equals(b.getValue())
+                ? Long.compare(a.getKey(), b.getKey()) : Integer.compare(b.getValue(), a.getValue()));
+        List<Long> ids = new ArrayList<>(Math.min(size, ranked.size() - from));
+        for (int i = from; i < ranked.size() && i < from + size; i++) {
+            ids.add(ranked.get(i).getKey());
+        }
+        return ids;
+    }
+
+    /**
+     * 统一为小写并去掉空白,全角字母数字转为半角
+     */
+    static String normalize(String text) {
+        if (StrUtil.isBlank(text)) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= '！' && c <= '～') {
+                c = (char) (c - 0xFEE0);
+            }
+            if (!Character.isWhitespace(c) && c != '　') {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static Set<String> unigrams(String text) {
+        Set<String> grams = new LinkedHashSet<>();
+        for (int i = 0; i < text.length(); i++) {
+            grams.add(text.substring(i, i + 1));
+        }
+        return grams;
+    }
+
+    private static Set<String> bigrams(String text) {
+        Set<String> grams = new LinkedHashSet<>();
+        for (int i = 0; i + 2 <= text.length(); i++) {
+            grams.add(text.substring(i, i + 2));
+        }
+        return grams;
+    }
+
+    /**
+     * 一个店铺被索引的内容,删除时据此从倒排表中移除
+     */
+    private static class Doc {
+        final String name;
+        final Set<String> grams;
+
+        Doc(String name, Set<String> grams) {
+            this.name = name;
+            this.grams = grams;
+        }
+    }
+
+    /**
+     * 倒排索引,只在发布前修改,发布后只读
+     * 副本与原索引共享没有变化的倒排表,修改某个n-gram前先复制它的倒排表,原索引始终不变
+     */
+    private static class Index {
+        //n-gram -> (店铺id -> 权重)
+        final Map<String, Map<Long, Integer>> postings;
+        //店铺id -> 被索引的内容
+        final Map<Long, Doc> docs;
+        //发布前已经复制过(属于当前索引、可以直接修改)的倒排表
+        private Set<String> owned = new HashSet<>();
+
+        Index() {
+            this(new HashMap<>(), new HashMap<>());
+        }
+
+        private Index(Map<String, Map<Long, Integer>> postings, Map<Long, Doc> docs) {
+            this.postings = postings;
+            this.docs = docs;
+        }
+
+        /**
+         * 复制出可以修改的新索引,倒排表在修改时才复制
+         * @return
+         */
+        Index copy() {
+            return new Index(new HashMap<>(postings), new HashMap<>(docs));
+        }
+
+        /**
+         * 修改完成,发布前调用
+         */
+        void seal() {
+            owned = null;
+        }
+
+        void put(long id, String name, String area, String address) {
+            String n = normalize(name);
+            //n-gram -> 该店铺的权重,同一个n-gram出现在多个字段时取权重之和
+            Map<String, Integer> weights = new HashMap<>();
+            addField(weights, n, WEIGHT_NAME);
+            addField(weights, normalize(area), WEIGHT_AREA);
+            addField(weights, normalize(address), WEIGHT_ADDRESS);
+            weights.forEach((gram, weight) -> writable(gram).put(id, weight));
+            docs.put(id, new Doc(n, weights.keySet()));
+        }
+
+        void remove(long id) {
+            Doc doc = docs.remove(id);
+            if (doc == null) {
+                return;
+            }
+            for (String gram : doc.grams) {
+                if (!postings.containsKey(gram)) {
+                    continue;
+                }
+                Map<Long, Integer> list = writable(gram);
+                list.remove(id);
+                if (list.isEmpty()) {
+                    postings.remove(gram);
+                }
+            }
+        }
+
+        /**
+         * 取得可以修改的倒排表,与旧索引共享时先复制
+         * @param gram
+         * @return
+         */
+        private Map<Long, Integer> writable(String gram) {
+            Map<Long, Integer> list = postings.get(gram);
+            if (list == null) {
+                list = new HashMap<>();
+                postings.put(gram, list);
+                owned.add(gram);
+            } else if (owned.add(gram)) {
+                list = new HashMap<>(list);
+                postings.put(gram, list);
+            }
+            return list;
+        }
+
+        private static void addField(Map<String, Integer> weights, String text, int weight) {
+            if (text.isEmpty()) {
+                return;
+            }
+            //单字用于单字查询,bigram用于多字查询
+            for (String gram : unigrams(text)) {
+                weights.merge(gram, weight, Integer::sum);
+            }
+            for (String gram : bigrams(text)) {
+                weights.merge(gram, weight, Integer::sum);
+            }
+        }
+    }
+}
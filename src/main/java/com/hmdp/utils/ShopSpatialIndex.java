@@ -0,0 +1,349 @@
+package com.hmdp.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * 进程内的店铺空间索引,按typeId分别建立网格索引,查询附近的店铺不需要访问redis
+ * 每个类型的索引是不可变的快照:店铺按所在网格排序后存放在基本类型数组中,通过二分查找定位网格
+ * 查询时从中心网格一圈一圈向外扩展,外圈的最近距离超过搜索半径或已找到的第k个距离时停止
+ * 店铺变化时只重建所属类型的快照,查询不加锁
+ */
+@Component
+public class ShopSpatialIndex {
+
+    //地球半径,与redis GEO的计算保持一致,单位米
+    private static final double EARTH_RADIUS = 6372797.560856;
+
+    //网格的边长,单位度,0.01度约为1公里
+    @Value("${hmdp.shop.geo.index.cell-degrees:0.01}")
+    private double cellDegrees;
+
+    //typeId -> 索引快照
+    private final Map<Long, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    //typeId -> (店铺id -> 坐标),增量更新时用来重建快照,由this保护
+    private final Map<Long, Map<Long, double[]>> positions = new HashMap<>();
+
+    //店铺id -> typeId,店铺更换类型时从旧类型中移除
+    private final Map<Long, Long> shopTypes = new HashMap<>();
+
+    //是否已经全量加载过
+    private volatile boolean loaded;
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * 全量加载,替换已有的索引
+     * @param typeIds   店铺类型,与其余数组一一对应
+     * @param shopIds
+     * @param xs        经度
+     * @param ys        纬度
+     */
+    public synchronized void replaceAll(long[] typeIds, long[] shopIds, double[] xs, double[] ys) {
+        positions.clear();
+        shopTypes.clear();
+        for (int i = 0; i < shopIds.length; i++) {
+            positions.computeIfAbsent(typeIds[i], k -> new HashMap<>()).put(shopIds[i], new double[]{xs[i], ys[i]});
+            shopTypes.put(shopIds[i], typeIds[i]);
+        }
+        snapshots.keySet().retainAll(positions.keySet());
+        for (Long typeId : positions.keySet()) {
+            rebuild(typeId);
+        }
+        loaded = true;
+    }
+
+    /**
+     * 新增或更新一个店铺的位置
+     * @param typeId
+     * @param shopId
+     * @param x
+     * @param y
+     */
+    public synchronized void put(long typeId, long shopId, double x, double y) {
+        Long oldType = shopTypes.put(shopId, typeId);
+        if (oldType != null && oldType != typeId) {
+            positions.get(oldType).remove(shopId);
+            rebuild(oldType);
+        }
+        positions.computeIfAbsent(typeId, k -> new HashMap<>()).put(shopId, new double[]{x, y});
+        rebuild(typeId);
+    }
+
+    /**
+     * 移除一个店铺
+     * @param shopId
+     */
+    public synchronized void remove(long shopId) {
+        Long typeId = shopTypes.remove(shopId);
+        if (typeId != null) {
+            positions.get(typeId).remove(shopId);
+            rebuild(typeId);
+        }
+    }
+
+    /**
+     * 查询距离最近的k个店铺
+     * @param typeId
+     * @param x
+     * @param y
+     * @param k
+     * @return 按距离由近到远排列
+     */
+    public List<Neighbor> nearest(long typeId, double x, double y, int k) {
+        return search(typeId, x, y, Double.MAX_VALUE, 0, k);
+    }
+
+    /**
+     * 查询半径内的店铺,按距离由近到远分页
+     * @param typeId
+     * @param x         经度
+     * @param y         纬度
+     * @param radius    搜索半径,单位米
+     * @param from      跳过的数量
+     * @param size      每页的数量
+     * @return 按距离由近到远排列
+     */
+    public List<Neighbor> search(long typeId, double x, double y, double radius, int from, int size) {
+        Snapshot s = snapshots.get(typeId);
+        if (s == null || size <= 0) {
+            return Collections.emptyList();
+        }
+        int k = from + size;
+        //1.大顶堆保存目前最近的k个店铺,堆顶是其中最远的
+        double[] heapDist = new double[k];
+        int[] heapIndex = new int[k];
+        int heapSize = 0;
+
+        //2.从中心网格一圈一圈向外扩展,直到覆盖所有店铺所在的网格
+        int cx = cellOf(x);
+        int cy = cellOf(y);
+        int maxRing = Math.max(Math.max(cx - s.minCx, s.maxCx - cx), Math.max(cy - s.minCy, s.maxCy - cy));
+        for (int r = 0; r <= maxRing; r++) {
+            //第r圈中的店铺与中心点的最近距离,超过半径或第k个距离时外圈不可能有更近的店铺
+            double bound = ringDistance(y, r);
+            if (bound > radius || (heapSize == k && bound >= heapDist[0])) {
+                break;
+            }
+            for (int i = cx - r; i <= cx + r; i++) {
+                //第一列和最后一列整列都在圈上,中间的列只有首尾两个网格
+                int step = i == cx - r || i == cx + r ? 1 : Math.max(2 * r, 1);
+                for (int j = cy - r; j <= cy + r; j += step) {
+                    int c = Arrays.binarySearch(s.cellKeys, cellKey(i, j));
+                    if (c < 0) {
+                        continue;
+                    }
+                    for (int p = s.cellStart[c]; p < s.cellStart[c + 1]; p++) {
+                        double d = distance(x, y, s.xs[p], s.ys[p]);
+                        if (d > radius) {
+                            continue;
+                        }
+                        if (heapSize < k) {
+                            heapDist[heapSize] = d;
+                            heapIndex[heapSize] = p;
+                            siftUp(heapDist, heapIndex, heapSize++);
+                        } else if (d < heapDist[0]) {
+                            heapDist[0] = d;
+                            heapIndex[0] = p;
+                            siftDown(heapDist, heapIndex, 0, heapSize);
+                        }
+                    }
+                }
+            }
+        }
+
+        //3.堆排序,由近到远排列后截取当前页
+        for (int n = heapSize - 1; n > 0; n--) {
+            swap(heapDist, heapIndex, 0, n);
+            siftDown(heapDist, heapIndex, 0, n);
+        }
+        if (heapSize <= from) {
+            return Collections.emptyList();
+        }
+        List<Neighbor> list = new ArrayList<>(heapSize - from);
+        for (int n = from; n < heapSize; n++) {
+            list.add(new Neighbor(s.ids[heapIndex[n]], heapDist[n]));
+        }
+        return list;
+    }
+
+    /**
+     * 根据一个类型当前的店铺重建快照
+     * @param typeId
+     */
+    private void rebuild(Long typeId) {
+        Map<Long, double[]> shops = positions.get(typeId);
+        if (shops == null || shops.isEmpty()) {
+            positions.remove(typeId);
+            snapshots.remove(typeId);
+            return;
+        }
+        int n = shops.size();
+        long[] ids = new long[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        long[] keys = new long[n];
+        int i = 0;
+        for (Map.Entry<Long, double[]> entry : shops.entrySet()) {
+            ids[i] = entry.getKey();
+            xs[i] = entry.getValue()[0];
+            ys[i] = entry.getValue()[1];
+            keys[i] = cellKey(cellOf(xs[i]), cellOf(ys[i]));
+            i++;
+        }
+        //按网格编号排序,同一网格的店铺连续存放
+        int[] order = IntStream.range(0, n).boxed()
+                .sorted((a, b) -> Long.compare(keys[a], keys[b]))
+                .mapToInt(Integer::intValue).toArray();
+        Snapshot s = new Snapshot(n);
+        List<Integer> starts = new ArrayList<>();
+        List<Long> cells = new ArrayList<>();
+        for (int p = 0; p < n; p++) {
+            int o = order[p];
+            s.ids[p] = ids[o];
+            s.xs[p] = xs[o];
+            s.ys[p] = ys[o];
+            if (p == 0 || keys[o] != keys[order[p - 1]]) {
+                cells.add(keys[o]);
+                starts.add(p);
+            }
+            int cx = cellOf(xs[o]);
+            int cy = cellOf(ys[o]);
+            s.minCx = Math.min(s.minCx, cx);
+            s.maxCx = Math.max(s.maxCx, cx);
+            s.minCy = Math.min(s.minCy, cy);
+            s.maxCy = Math.max(s.maxCy, cy);
+        }
+        s.cellKeys = cells.stream().mapToLong(Long::longValue).toArray();
+        s.cellStart = new int[cells.size() + 1];
+        for (int c = 0; c < cells.size(); c++) {
+            s.cellStart[c] = starts.get(c);
+        }
+        s.cellStart[cells.size()] = n;
+        snapshots.put(typeId, s);
+    }
+
+    private int cellOf(double degrees) {
+        return (int) Math.floor(degrees / cellDegrees);
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    /**
+     * 第r圈网格中的点与中心点的最近距离的下界
+     * 中心点可能在中心网格的边缘,所以只能保证相隔r-1个网格
+     * 经度方向按这几圈中纬度最高处计算,纬度越高同样的经度差对应的距离越短
+     */
+    private double ringDistance(double y, int r) {
+        if (r <= 1) {
+            return 0;
+        }
+        double delta = Math.toRadians(Math.min((r - 1) * cellDegrees, 90));
+        double maxLat = Math.toRadians(Math.min(Math.abs(y) + r * cellDegrees, 90));
+        double latBound = EARTH_RADIUS * delta;
+        double lonBound = EARTH_RADIUS * Math.asin(Math.min(1, Math.cos(maxLat) * Math.sin(delta)));
+        return Math.min(latBound, lonBound);
+    }
+
+    /**
+     * 两点之间的球面距离(haversine),与redis GEODIST的算法一致
+     * @return 单位米
+     */
+    private static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2.0 * EARTH_RADIUS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    private static void siftUp(double[] dist, int[] index, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (dist[parent] >= dist[i]) {
+                return;
+            }
+            swap(dist, index, parent, i);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(double[] dist, int[] index, int i, int size) {
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && dist[left] > dist[largest]) {
+                largest = left;
+            }
+            if (right < size && dist[right] > dist[largest]) {
+                largest = right;
+            }
+            if (largest == i) {
+                return;
+            }
+            swap(dist, index, largest, i);
+            i = largest;
+        }
+    }
+
+    private static void swap(double[] dist, int[] index, int a, int b) {
+        double d = dist[a];
+        dist[a] = dist[b];
+        dist[b] = d;
+        int t = index[a];
+        index[a] = index[b];
+        index[b] = t;
+    }
+
+    /**
+     * 一个类型的索引快照,创建后不再修改
+     */
+    private static class Snapshot {
+        //按网格编号排序的店铺
+        final long[] ids;
+        final double[] xs;
+        final double[] ys;
+        //有店铺的网格编号(升序),以及每个网格的第一个店铺的下标,cellStart比cellKeys多一个元素
+        long[] cellKeys;
+        int[] cellStart;
+        //网格坐标的范围,查询扩展到覆盖整个范围为止
+        int minCx = Integer.MAX_VALUE;
+        int maxCx = Integer.MIN_VALUE;
+        int minCy = Integer.MAX_VALUE;
+        int maxCy = Integer.MIN_VALUE;
+
+        Snapshot(int n) {
+            ids = new long[n];
+            xs = new double[n];
+            ys = new double[n];
+        }
+    }
+
+    /**
+     * 查询结果
+     */
+    @Data
+    @AllArgsConstructor
+    public static class Neighbor {
+        private long shopId;
+        //距离,单位米
+        private double distance;
+    }
+}
@@ -0,0 +1,280 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.extra.pinyin.PinyinUtil;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 店铺名称的前缀联想
+ * 名称、全拼、拼音首字母都插入同一棵字典树,每个节点预先保存以它为前缀的排名最高的k个店铺
+ * 字典树构建后压平为基本类型数组,查询时逐个字符二分查找子节点,不为每个字符创建对象
+ * 店铺变化时重新构建整棵树(店铺名称很短,构建只需几毫秒),查询使用旧树直到新树构建完成
+ */
+@Component
+public class ShopSuggester {
+
+    //每个节点保存的候选数量,也是一次联想返回的最大数量
+    @Value("${hmdp.shop.suggest.top-k:10}")
+    private int topK;
+
+    //当前的字典树,构建完成后整体替换
+    private volatile Trie trie = Trie.EMPTY;
+
+    //店铺id -> 店铺,用于增量更新后重新构建,由this保护
+    private final Map<Long, Entry> entries = new HashMap<>();
+
+    /**
+     * 全量重建
+     * @param ids
+     * @param names
+     * @param sold      销量
+     * @param scores    评分
+     */
+    public synchronized void replaceAll(long[] ids, String[] names, int[] sold, int[] scores) {
+        entries.clear();
+        for (int i = 0; i < ids.length; i++) {
+            if (StrUtil.isNotBlank(names[i])) {
+                entries.put(ids[i], new Entry(ids[i], names[i], sold[i], scores[i]));
+            }
+        }
+        trie = Trie.build(new ArrayList<>(entries.values()), topK);
+    }
+
+    /**
+     * 新增或更新一个店铺
+     * @param id
+     * @param name
+     * @param sold
+     * @param score
+     */
+    public synchronized void put(long id, String name, int sold, int score) {
+        if (StrUtil.isBlank(name)) {
+            remove(id);
+            return;
+        }
+        entries.put(id, new Entry(id, name, sold, score));
+        trie = Trie.build(new ArrayList<>(entries.values()), topK);
+    }
+
+    /**
+     * 移除一个店铺
+     * @param id
+     */
+    public synchronized void remove(long id) {
+        if (entries.remove(id) != null) {
+            trie = Trie.build(new ArrayList<>(entries.values()), topK);
+        }
+    }
+
+    /**
+     * 查询以prefix开头的店铺,按销量、评分排序
+     * @param prefix    名称、全拼或拼音首字母的前缀,忽略大小写和空白
+     * @param k         返回的最大数量,不超过top-k
+     * @return
+     */
+    public List<Suggestion> suggest(String prefix, int k) {
+        if (StrUtil.isBlank(prefix) || k <= 0) {
+            return Collections.emptyList();
+        }
+        Trie t = trie;
+        //1.沿着前缀向下查找节点
+        int node = 0;
+        for (int i = 0; i < prefix.length() && node >= 0; i++) {
+            char c = prefix.charAt(i);
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            node = t.child(node, Character.toLowerCase(c));
+        }
+        if (node < 0) {
+            return Collections.emptyList();
+        }
+        //2.节点上预先保存了排名最高的店铺
+        int count = Math.min(k, t.topCount[node]);
+        List<Suggestion> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Entry entry = t.entries[t.top[t.topStart[node] + i]];
+            list.add(new Suggestion(entry.id, entry.name));
+        }
+        return list;
+    }
+
+    /**
+     * 一个店铺要插入字典树的所有形式:名称、全拼、拼音首字母,都转为小写并去掉空白
+     */
+    private static List<String> keysOf(String name) {
+        List<String> keys = new ArrayList<>(3);
+        String normalized = strip(name);
+        keys.add(normalized);
+        String pinyin = strip(PinyinUtil.getPinyin(name, ""));
+        if (!pinyin.equals(normalized)) {
+            keys.add(pinyin);
+        }
+        String initials = strip(PinyinUtil.getFirstLetter(name, ""));
+        if (!initials.equals(normalized) && !initials.equals(pinyin)) {
+            keys.add(initials);
+        }
+        return keys;
+    }
+
+    private static String strip(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    @AllArgsConstructor
+    private static class Entry {
+        final long id;
+        final String name;
+        final int sold;
+        final int score;
+    }
+
+    /**
+     * 压平为数组的字典树,节点0为根节点
+     */
+    private static class Trie {
+
+        static final Trie EMPTY = build(new ArrayList<>(), 0);
+
+        //按排名排序的店铺,top中保存的是这里的下标
+        Entry[] entries;
+        //每个节点的子节点在edgeChars/edgeTargets中的起始下标和数量,同一节点的子节点按字符排序
+        int[] edgeStart;
+        int[] edgeCount;
+        char[] edgeChars;
+        int[] edgeTargets;
+        //每个节点的候选店铺在top中的起始下标和数量
+        int[] topStart;
+        int[] topCount;
+        int[] top;
+
+        /**
+         * 查找子节点
+         * @return 不存在时返回-1
+         */
+        int child(int node, char c) {
+            int low = edgeStart[node];
+            int high = low + edgeCount[node] - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                char m = edgeChars[mid];
+                if (m < c) {
+                    low = mid + 1;
+                } else if (m > c) {
+                    high = mid - 1;
+                } else {
+                    return edgeTargets[mid];
+                }
+            }
+            return -1;
+        }
+
+        static Trie build(List<Entry> list, int topK) {
+            //1.按销量、评分从高到低排序,按这个顺序插入,节点上先到的就是排名高的
+            list.sort((a, b) -> a.sold != b.sold ? Integer.compare(b.sold, a.sold)
+                    : a.score != b.score ? Integer.compare(b.score, a.score) : Long.compare(a.id, b.id));
+
+            //2.构建指针形式的字典树
+            List<Node> nodes = new ArrayList<>();
+            Node root = new Node();
+            nodes.add(root);
+            for (int e = 0; e < list.size(); e++) {
+                for (String key : keysOf(list.get(e).name)) {
+                    Node node = root;
+                    node.offer(e, topK);
+                    for (int i = 0; i < key.length(); i++) {
+                        Node next = node.children.get(key.charAt(i));
+                        if (next == null) {
+                            next = new Node();
+                            node.children.put(key.charAt(i), next);
+                            nodes.add(next);
+                        }
+                        node = next;
+                        node.offer(e, topK);
+                    }
+                }
+            }
+
+            //3.压平为数组,节点编号即在nodes中的下标
+            Map<Node, Integer> numbers = new HashMap<>(nodes.size() * 2);
+            for (int i = 0; i < nodes.size(); i++) {
+                numbers.put(nodes.get(i), i);
+            }
+            Trie t = new Trie();
+            t.entries = list.toArray(new Entry[0]);
+            int n = nodes.size();
+            t.edgeStart = new int[n];
+            t.edgeCount = new int[n];
+            t.edgeChars = new char[n - 1];
+            t.edgeTargets = new int[n - 1];
+            t.topStart = new int[n];
+            t.topCount = new int[n];
+            int topTotal = 0;
+            for (Node node : nodes) {
+                topTotal += node.top.size();
+            }
+            t.top = new int[topTotal];
+            int edge = 0;
+            int topIndex = 0;
+            for (int i = 0; i < n; i++) {
+                Node node = nodes.get(i);
+                t.edgeStart[i] = edge;
+                t.edgeCount[i] = node.children.size();
+                for (Map.Entry<Character, Node> child : node.children.entrySet()) {
+                    t.edgeChars[edge] = child.getKey();
+                    t.edgeTargets[edge] = numbers.get(child.getValue());
+                    edge++;
+                }
+                t.topStart[i] = topIndex;
+                t.topCount[i] = node.top.size();
+                for (Integer e : node.top) {
+                    t.top[topIndex++] = e;
+                }
+            }
+            return t;
+        }
+    }
+
+    /**
+     * 构建时使用的节点
+     */
+    private static class Node {
+        //按字符排序,压平后可以二分查找
+        final TreeMap<Character, Node> children = new TreeMap<>();
+        final List<Integer> top = new ArrayList<>();
+
+        void offer(int entry, int topK) {
+            //同一个店铺的多种形式可能经过同一个节点,只保留一次
+            if (top.size() < topK && (top.isEmpty() || top.get(top.size() - 1) != entry)) {
+                top.add(entry);
+            }
+        }
+    }
+
+    /**
+     * 联想结果
+     */
+    @Data
+    @AllArgsConstructor
+    public static class Suggestion {
+        private long id;
+        private String name;
+    }
+}
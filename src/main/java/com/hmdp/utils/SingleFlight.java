@@ -0,0 +1,97 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * 进程内按key合并并发请求
+ * 同一个key同一时刻只有一个线程真正执行加载逻辑,其余线程等待同一个结果,避免惊群效应
+ */
+@Slf4j
+public class SingleFlight {
+
+    //正在执行中的调用,key -> 结果
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * 同步执行,第一个到达的线程在当前线程中执行loader,其余线程阻塞等待其结果
+     * @param key
+     * @param loader
+     * @return
+     * @param <T>
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader) {
+        CompletableFuture<Object> call = new CompletableFuture<>();
+        CompletableFuture<Object> existing = calls.putIfAbsent(key, call);
+        if (existing != null) {
+            //已经有线程在加载,等待它的结果
+            try {
+                return (T) existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            T value = loader.get();
+            call.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, call);
+        }
+    }
+
+    /**
+     * 异步执行,第一个到达的线程把loader提交到executor,其余线程直接拿到同一个future
+     * @param key
+     * @param executor
+     * @param loader
+     * @return
+     * @param <T>
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> executeAsync(String key, Executor executor, Supplier<T> loader) {
+        CompletableFuture<Object> call = new CompletableFuture<>();
+        CompletableFuture<Object> existing = calls.putIfAbsent(key, call);
+        if (existing != null) {
+            return (CompletableFuture<T>) (CompletableFuture<?>) existing;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    call.complete(loader.get());
+                } catch (Throwable e) {
+                    log.error("执行异步加载异常, key: {}", key, e);
+                    call.completeExceptionally(e);
+                } finally {
+                    calls.remove(key, call);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            calls.remove(key, call);
+            call.completeExceptionally(e);
+        }
+        return (CompletableFuture<T>) (CompletableFuture<?>) call;
+    }
+
+    /**
+     * 判断key是否正在加载中
+     * @param key
+     * @return
+     */
+    public boolean isInFlight(String key) {
+        return calls.containsKey(key);
+    }
+}
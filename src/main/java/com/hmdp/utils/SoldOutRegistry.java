@@ -0,0 +1,107 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 进程内的秒杀券售罄标记
+ * 秒杀脚本第一次返回库存不足时标记,并通过pub/sub通知所有节点,之后的请求在本地直接拒绝,不再访问redis
+ * 补充库存时清除所有节点的标记
+ * 节点可能错过清除消息(例如与redis断开期间),所以标记在ttl后自动失效,最多再执行一次脚本就会重新标记
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry {
+
+    //消息格式: +优惠券id 标记售罄, -优惠券id 清除标记
+    private static final char MARK = '+';
+    private static final char CLEAR = '-';
+
+    //售罄标记的有效期,单位毫秒
+    @Value("${hmdp.seckill.sold-out.ttl:60000}")
+    private long ttlMillis;
+
+    //优惠券id -> 标记的过期时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    private void init() {
+        //订阅售罄消息,收到后更新本节点的标记
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL)
+        );
+    }
+
+    /**
+     * 优惠券是否已经售罄
+     * @param voucherId
+     * @return
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long expireTime = soldOut.get(voucherId);
+        if (expireTime == null) {
+            return false;
+        }
+        if (expireTime < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireTime);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄并通知其他节点,本节点已经标记过时不重复通知
+     * @param voucherId
+     */
+    public void markSoldOut(Long voucherId) {
+        if (isSoldOut(voucherId)) {
+            return;
+        }
+        soldOut.put(voucherId, System.currentTimeMillis() + ttlMillis);
+        publish(MARK, voucherId);
+    }
+
+    /**
+     * 补充库存后清除所有节点的标记
+     * @param voucherId
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        publish(CLEAR, voucherId);
+    }
+
+    private void publish(char op, Long voucherId) {
+        try {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, op + voucherId.toString());
+        } catch (RuntimeException e) {
+            //通知失败时其他节点的标记在ttl后失效
+            log.warn("发送售罄消息失败, voucherId: {}", voucherId, e);
+        }
+    }
+
+    private void onMessage(String body) {
+        Long voucherId = Long.valueOf(body.substring(1));
+        if (body.charAt(0) == MARK) {
+            soldOut.put(voucherId, System.currentTimeMillis() + ttlMillis);
+        } else {
+            soldOut.remove(voucherId);
+        }
+    }
+}
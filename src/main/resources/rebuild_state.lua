@@ -0,0 +1,24 @@
+---
+--- 修改逻辑过期数据头部的重建状态,头部与读取时一致才修改
+--- key已被删除时不能用SETRANGE,否则会创建一个用0填充、没有过期时间、无法解码的key
+--- 数据已被重写(重建完成或更新)时也不能修改,否则会把新数据的过期时间改掉
+---
+
+-- 1.参数列表
+--  KEYS[1]: 缓存的key
+--  ARGV[1]: 读取时头部中 重建状态(1) + 过期时间(8) + 数据版本(8) 的字节,对应偏移量3~19
+--  ARGV[2]: 新的 重建状态(1) + 时间(8),从偏移量3开始写入
+--  头部格式见BinaryCacheCodec: | magic 0xCA | 格式版本2 | flags | 重建状态 | 过期时间 | 数据版本 | 结构哈希 |
+
+-- 2.读取定长头部,key不存在时返回空串
+local header = redis.call('getrange', KEYS[1], 0, 23)
+if (string.len(header) < 24 or string.byte(header, 1) ~= 202 or string.byte(header, 2) ~= 2) then
+    return 0
+end
+-- 3.头部已经变化,说明数据被重写过
+if (string.sub(header, 4, 20) ~= ARGV[1]) then
+    return 0
+end
+-- 4.只修改重建状态和时间
+redis.call('setrange', KEYS[1], 3, ARGV[2])
+return 1
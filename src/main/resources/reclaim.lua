@@ -0,0 +1,56 @@
+---
+--- 把已经死掉的消费者手中的消息转给当前消费者,效果等同于 XAUTOCLAIM(redis 6.2+),兼容redis 5
+--- 并删除长时间不活跃且没有未确认消息的消费者,避免消费者组中堆积每次启动产生的消费者名称
+---
+
+-- XPENDING返回的空闲时间是不确定的结果,之后还要执行写命令,需要按命令复制
+redis.replicate_commands()
+
+-- 1.参数列表
+--  KEYS[1]: stream的key
+--  ARGV[1]: 消费者组
+--  ARGV[2]: 当前消费者
+--  ARGV[3]: 消息空闲超过多少毫秒才认为原消费者已经死掉
+--  ARGV[4]: 一次最多检查的消息数量
+--  ARGV[5]: 消费者空闲超过多少毫秒且没有未确认消息时删除
+local stream = KEYS[1]
+local group = ARGV[1]
+local consumer = ARGV[2]
+local minIdle = tonumber(ARGV[3])
+
+-- 2.找出空闲时间超过minIdle的消息 XPENDING key group - + count
+local pending = redis.call('xpending', stream, group, '-', '+', ARGV[4])
+local ids = {}
+for _, p in ipairs(pending) do
+    --  p: {id, 消费者, 空闲时间, 投递次数}
+    if (p[2] ~= consumer and tonumber(p[3]) >= minIdle) then
+        table.insert(ids, p[1])
+    end
+end
+
+-- 3.转给当前消费者 XCLAIM key group consumer min-idle id... JUSTID
+--   只转移归属,消息由当前消费者读取自己的pending-list时处理
+local claimed = 0
+if (#ids > 0) then
+    --  unpack只有放在参数列表最后才会展开全部元素,所以先拼好完整的参数
+    local args = {stream, group, consumer, minIdle}
+    for _, id in ipairs(ids) do
+        table.insert(args, id)
+    end
+    table.insert(args, 'JUSTID')
+    claimed = #redis.call('xclaim', unpack(args))
+end
+
+-- 4.删除长时间不活跃且没有未确认消息的消费者
+local consumers = redis.call('xinfo', 'consumers', stream, group)
+for _, c in ipairs(consumers) do
+    --  c: {'name', 名称, 'pending', 数量, 'idle', 空闲时间, ...}
+    local info = {}
+    for i = 1, #c, 2 do
+        info[c[i]] = c[i + 1]
+    end
+    if (info['name'] ~= consumer and tonumber(info['pending']) == 0 and tonumber(info['idle']) >= tonumber(ARGV[5])) then
+        redis.call('xgroup', 'delconsumer', stream, group, info['name'])
+    end
+end
+return claimed
@@ -12,15 +12,17 @@ local userId = ARGV[2]
 --  订单id
 local orderId = ARGV[3]
 
--- 2.数据key
---  库存key
-local stockKey = 'seckill:stock:' .. voucherId
---  订单key
-local orderKey = 'seckill:order:' .. voucherId
+-- 2.数据key,全部通过KEYS传入,使用相同的hash tag保证在Redis Cluster的同一个slot中
+--  库存key seckill:stock:{分片}:优惠券id
+local stockKey = KEYS[1]
+--  订单key seckill:order:{分片}:优惠券id
+local orderKey = KEYS[2]
+--  优惠券所在分片的订单stream stream.orders:{分片}
+local streamKey = KEYS[3]
 
 -- 3.脚本业务
 --  3.1判断库存是否充足 get stockKey
-if (tonumber(redis.call('get', stockKey)) <= 0) then
+if (tonumber(redis.call('get', stockKey) or 0) <= 0) then
     -- 库存不足
     return 1
 end
@@ -34,6 +36,6 @@ end
 redis.call('incrby', stockKey, -1)
 --  3.5下单(保存用户) sadd orderKey userId
 redis.call('sadd', orderKey, userId)
---  3.6发送消息到队列中，XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+--  3.6发送消息到队列中，XADD stream.orders:{分片} * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
 return 0 --成功返回0,  1,2代表失败
\ No newline at end of file
@@ -0,0 +1,30 @@
+---
+--- 库存分段模式下扣减一个分段的库存并发送订单消息
+--- 订单key与各个分段不在同一个slot,一人一单已经在调用前通过SADD订单key校验,这里只处理库存
+---
+
+-- 1.参数列表
+--  优惠券id
+local voucherId = ARGV[1]
+--  用户id
+local userId = ARGV[2]
+--  订单id
+local orderId = ARGV[3]
+
+-- 2.数据key,使用相同的hash tag保证在Redis Cluster的同一个slot中
+--  分段的库存key seckill:stock:{分片}:优惠券id:分段
+local stockKey = KEYS[1]
+--  分段所在分片的订单stream stream.orders:{分片}
+local streamKey = KEYS[2]
+
+-- 3.脚本业务
+--  3.1判断分段的库存是否充足
+if (tonumber(redis.call('get', stockKey) or 0) <= 0) then
+    -- 库存不足
+    return 1
+end
+--  3.2扣库存 incrby stockKey -1
+redis.call('incrby', stockKey, -1)
+--  3.3发送消息到队列中，XADD stream.orders:{分片} * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 0
@@ -0,0 +1,25 @@
+---
+--- 带版本号写入缓存,旧版本的数据不能覆盖新版本的数据
+---
+
+-- 1.参数列表
+--  KEYS[1]: 缓存的key
+--  KEYS[2]: 版本的key, hash类型, seq为最新的版本号, written为缓存中数据的版本号
+--  ARGV[1]: 数据
+--  ARGV[2]: 数据的版本号, 为空时代表更新操作, 生成新的版本号
+--  ARGV[3]: 版本key的过期时间,单位秒,不小于数据的过期时间
+local version = tonumber(ARGV[2])
+
+-- 2.脚本业务
+if (version == nil) then
+    --  2.1更新操作,生成新的版本号
+    version = redis.call('hincrby', KEYS[2], 'seq', 1)
+elseif (version < tonumber(redis.call('hget', KEYS[2], 'written') or 0)) then
+    --  2.2缓存重建,读取数据库之后缓存已经被更新过,放弃写入
+    return -1
+end
+--  2.3写入数据和版本号
+redis.call('set', KEYS[1], ARGV[1])
+redis.call('hset', KEYS[2], 'written', version)
+redis.call('expire', KEYS[2], ARGV[3])
+return version
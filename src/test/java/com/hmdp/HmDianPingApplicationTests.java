@@ -1,18 +1,25 @@
 package com.hmdp;
 
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Shop;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.UserHolder;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import javax.annotation.Resource;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -20,6 +27,9 @@ import java.util.concurrent.*;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -36,6 +46,12 @@ class HmDianPingApplicationTests {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
     @Test
     void loadShopData() {
         //1.查询店铺信息
@@ -106,6 +122,39 @@ class HmDianPingApplicationTests {
 
     }
 
-
-
+    /**
+     * 库存分段模式下,用户对应的分段卖完后再次下单,不能从其他分段再买一次
+     */
+    @Test
+    void testSeckillBucketRetry() {
+        int buckets = seckillKeys.getBuckets();
+        ReflectionTestUtils.setField(seckillKeys, "buckets", 2);
+        long voucherId = 900000001L;
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        UserHolder.saveUser(user);
+        String homeKey = seckillKeys.stockKey(voucherId, seckillKeys.bucketOf(1L));
+        String otherKey = seckillKeys.stockKey(voucherId, (seckillKeys.bucketOf(1L) + 1) % 2);
+        String orderKey = seckillKeys.orderKey(voucherId);
+        try {
+            stringRedisTemplate.opsForValue().set(homeKey, "1");
+            stringRedisTemplate.opsForValue().set(otherKey, "5");
+
+            //1.第一次下单从自己的分段扣减
+            Result first = voucherOrderService.seckillVoucher(voucherId);
+            assertTrue(first.getSuccess());
+            assertEquals("0", stringRedisTemplate.opsForValue().get(homeKey));
+
+            //2.自己的分段已经卖完,再次下单被一人一单拒绝,其他分段的库存不变
+            Result second = voucherOrderService.seckillVoucher(voucherId);
+            assertFalse(second.getSuccess());
+            assertEquals("不能重复下单", second.getErrorMsg());
+            assertEquals("5", stringRedisTemplate.opsForValue().get(otherKey));
+            assertEquals(1L, stringRedisTemplate.opsForSet().size(orderKey));
+        } finally {
+            ReflectionTestUtils.setField(seckillKeys, "buckets", buckets);
+            UserHolder.removeUser();
+            stringRedisTemplate.delete(Arrays.asList(homeKey, otherKey, orderKey));
+        }
+    }
 }
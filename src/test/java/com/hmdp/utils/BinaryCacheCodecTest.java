@@ -0,0 +1,180 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * BinaryCacheCodec的编解码、头部布局和兼容性,不需要启动spring和redis
+ */
+class BinaryCacheCodecTest {
+
+    //逻辑过期时间只保留到毫秒
+    private static final LocalDateTime EXPIRE_TIME = LocalDateTime.of(2026, 1, 2, 3, 4, 5, 123_000_000);
+
+    private final BinaryCacheCodec codec = new BinaryCacheCodec(512);
+
+    private static Shop shop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://example.com/1.jpg,https://example.com/2.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+
+    private static RedisData redisData(Object data, Long version) {
+        RedisData redisData = new RedisData();
+        redisData.setData(data);
+        redisData.setExpireTime(EXPIRE_TIME);
+        redisData.setVersion(version);
+        return redisData;
+    }
+
+    @Test
+    void roundTrip() {
+        Shop shop = shop();
+        assertEquals(shop, codec.decode(codec.encode(shop), Shop.class));
+
+        RedisData decoded = codec.decodeLogic(codec.encodeLogic(redisData(shop, 42L)), Shop.class);
+        assertNotNull(decoded);
+        assertEquals(shop, decoded.getData());
+        assertEquals(EXPIRE_TIME, decoded.getExpireTime());
+        assertEquals(42L, decoded.getVersion());
+    }
+
+    @Test
+    void roundTripCompressed() {
+        Shop shop = shop().setAddress(StrUtil.repeat("金华路锦昌文华苑29号", 100));
+        BinaryCacheCodec compressing = new BinaryCacheCodec(0);
+
+        byte[] bytes = compressing.encodeLogic(redisData(shop, null));
+        assertTrue((bytes[2] & BinaryCacheCodec.FLAG_COMPRESSED) != 0);
+        assertEquals(shop, compressing.decodeLogic(bytes, Shop.class).getData());
+        assertEquals(shop, compressing.decode(compressing.encode(shop), Shop.class));
+    }
+
+    @Test
+    void nullFields() {
+        Shop shop = new Shop().setId(2L).setName("只有名字");
+        assertEquals(shop, codec.decode(codec.encode(shop), Shop.class));
+    }
+
+    @Test
+    void legacyJsonStillDecodes() {
+        Shop shop = shop();
+        //旧版本直接以json写入逻辑过期数据
+        byte[] bytes = JSONUtil.toJsonStr(redisData(shop, null)).getBytes(StandardCharsets.UTF_8);
+        JsonCacheCodec json = new JsonCacheCodec();
+
+        assertFalse(codec.supports(bytes));
+        assertTrue(json.supports(bytes));
+        assertNull(json.readHeader(bytes));
+        RedisData decoded = json.decodeLogic(bytes, Shop.class);
+        assertNotNull(decoded);
+        assertEquals(EXPIRE_TIME, decoded.getExpireTime());
+        Shop data = (Shop) decoded.getData();
+        assertEquals(shop.getId(), data.getId());
+        assertEquals(shop.getName(), data.getName());
+        assertEquals(shop.getX(), data.getX());
+
+        //新格式的数据json编解码器不会误认
+        assertFalse(json.supports(codec.encodeLogic(redisData(shop, null))));
+    }
+
+    @Test
+    void headerOffsets() {
+        byte[] bytes = codec.encodeLogic(redisData(shop(), 42L));
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        assertEquals(BinaryCacheCodec.MAGIC, bytes[0]);
+        assertEquals(BinaryCacheCodec.FORMAT_VERSION_LOGIC, bytes[1]);
+        assertEquals(CacheHeader.STATE_NORMAL, bytes[BinaryCacheCodec.REBUILD_STATE_OFFSET]);
+        assertEquals(EXPIRE_TIME.toInstant(ZoneOffset.UTC).toEpochMilli()
+                , buffer.getLong(BinaryCacheCodec.EXPIRE_TIME_OFFSET));
+        assertEquals(42L, buffer.getLong(BinaryCacheCodec.VERSION_OFFSET));
+
+        CacheHeader header = codec.readHeader(bytes);
+        assertNotNull(header);
+        assertEquals(CacheHeader.STATE_NORMAL, header.getRebuildState());
+        assertEquals(EXPIRE_TIME, header.getExpireTime());
+        assertEquals(42L, header.getVersion());
+
+        //与SETRANGE一样只修改重建状态,数据仍然可以解码
+        bytes[BinaryCacheCodec.REBUILD_STATE_OFFSET] = CacheHeader.STATE_REBUILDING;
+        assertEquals(CacheHeader.STATE_REBUILDING, codec.readHeader(bytes).getRebuildState());
+        assertEquals(shop(), codec.decodeLogic(bytes, Shop.class).getData());
+
+        //普通数据没有定长头部
+        assertNull(codec.readHeader(codec.encode(shop())));
+    }
+
+    @Test
+    void versionDefaultsToChecksum() {
+        Long version = codec.decodeLogic(codec.encodeLogic(redisData(shop(), null)), Shop.class).getVersion();
+        assertEquals(version, codec.decodeLogic(codec.encodeLogic(redisData(shop(), null)), Shop.class).getVersion());
+
+        Shop changed = shop().setName("103茶餐厅(新店)");
+        assertNotEquals(version, codec.decodeLogic(codec.encodeLogic(redisData(changed, null)), Shop.class).getVersion());
+    }
+
+    @Test
+    void schemaMismatchRejected() {
+        Shop shop = shop();
+        assertNull(codec.decode(codec.encode(shop), UserDTO.class));
+        assertNull(codec.decodeLogic(codec.encodeLogic(redisData(shop, null)), UserDTO.class));
+
+        //字段结构的哈希与当前类不一致
+        byte[] bytes = codec.encodeLogic(redisData(shop, null));
+        bytes[BinaryCacheCodec.SCHEMA_HASH_OFFSET] ^= 1;
+        assertNull(codec.decodeLogic(bytes, Shop.class));
+
+        //普通数据和逻辑过期数据不能互相解码
+        assertNull(codec.decode(codec.encodeLogic(redisData(shop, null)), Shop.class));
+        assertNull(codec.decodeLogic(codec.encode(shop), Shop.class));
+    }
+
+    @Test
+    void truncatedHeaderRejected() {
+        Shop shop = shop().setAddress(StrUtil.repeat("金华路锦昌文华苑29号", 100));
+        BinaryCacheCodec compressing = new BinaryCacheCodec(0);
+        byte[] logic = compressing.encodeLogic(redisData(shop, 42L));
+        byte[] plain = compressing.encode(shop);
+
+        //头部不完整时返回null,不抛出BufferUnderflowException
+        for (int length = 0; length < BinaryCacheCodec.SCHEMA_HASH_OFFSET + 8; length++) {
+            assertNull(compressing.decodeLogic(Arrays.copyOf(logic, length), Shop.class));
+            if (length < BinaryCacheCodec.SCHEMA_HASH_OFFSET + 4) {
+                assertNull(compressing.readHeader(Arrays.copyOf(logic, length)));
+            }
+        }
+        for (int length = 0; length < 11; length++) {
+            assertNull(compressing.decode(Arrays.copyOf(plain, length), Shop.class));
+        }
+    }
+}
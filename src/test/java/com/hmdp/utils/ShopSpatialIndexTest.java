@@ -0,0 +1,180 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 用随机店铺对比ShopSpatialIndex与暴力计算haversine距离后排序的结果,随机数种子固定,结果可复现
+ */
+class ShopSpatialIndexTest {
+
+    private static final double EARTH_RADIUS = 6372797.560856;
+    private static final long TYPE_ID = 1L;
+
+    //{中心经度, 中心纬度, 范围(度)},包括靠近南北极的网格,经度方向的距离下界在高纬度最容易出错
+    private static final double[][] REGIONS = {
+            {120.15, 30.3, 0.5},
+            {100.0, 0.0, 1.0},
+            {-50.0, 60.0, 1.0},
+            {0.0, 89.5, 0.5},
+            {10.0, -89.6, 0.4},
+    };
+
+    private final Random random = new Random(20211222L);
+
+    private ShopSpatialIndex index;
+    private long[] ids;
+    private double[] xs;
+    private double[] ys;
+
+    @BeforeEach
+    void setUp() {
+        index = new ShopSpatialIndex();
+        ReflectionTestUtils.setField(index, "cellDegrees", 0.01);
+    }
+
+    @Test
+    void searchMatchesBruteForce() {
+        for (double[] region : REGIONS) {
+            for (int round = 0; round < 20; round++) {
+                load(region, random.nextInt(300) + 1);
+                for (int q = 0; q < 20; q++) {
+                    double x = region[0] + (random.nextDouble() * 2 - 1) * region[2] * 1.2;
+                    double y = clampLat(region[1] + (random.nextDouble() * 2 - 1) * region[2] * 1.2);
+                    double radius = random.nextBoolean() ? Double.MAX_VALUE : random.nextDouble() * 100000;
+                    int from = random.nextInt(ids.length + 5);
+                    int size = random.nextInt(ids.length + 5);
+                    assertSearch(x, y, radius, from, size);
+                }
+            }
+        }
+    }
+
+    @Test
+    void nearestMatchesBruteForce() {
+        for (double[] region : REGIONS) {
+            load(region, 200);
+            for (int q = 0; q < 50; q++) {
+                double x = region[0] + (random.nextDouble() * 2 - 1) * region[2];
+                double y = clampLat(region[1] + (random.nextDouble() * 2 - 1) * region[2]);
+                int k = random.nextInt(20) + 1;
+                List<Long> expected = bruteForce(x, y, Double.MAX_VALUE, 0, k);
+                assertEquals(expected, idsOf(index.nearest(TYPE_ID, x, y, k)), "nearest k=" + k + " at " + x + "," + y);
+            }
+        }
+    }
+
+    @Test
+    void pageEdges() {
+        load(REGIONS[0], 50);
+        double x = REGIONS[0][0];
+        double y = REGIONS[0][1];
+        //size为0或类型不存在
+        assertTrue(index.search(TYPE_ID, x, y, Double.MAX_VALUE, 0, 0).isEmpty());
+        assertTrue(index.search(TYPE_ID + 1, x, y, Double.MAX_VALUE, 0, 10).isEmpty());
+        //from超过总数
+        assertTrue(index.search(TYPE_ID, x, y, Double.MAX_VALUE, 50, 10).isEmpty());
+        assertTrue(index.search(TYPE_ID, x, y, Double.MAX_VALUE, 100, 10).isEmpty());
+        //最后一页不满
+        assertSearch(x, y, Double.MAX_VALUE, 45, 10);
+        //一页包含全部店铺
+        assertSearch(x, y, Double.MAX_VALUE, 0, 50);
+        assertSearch(x, y, Double.MAX_VALUE, 0, 1000);
+        //半径内没有店铺
+        assertTrue(index.search(TYPE_ID, x + 10, y, 1000, 0, 10).isEmpty());
+        //连续的分页拼起来与一次查询所有的结果相同
+        List<Long> pages = new ArrayList<>();
+        for (int from = 0; from < 50; from += 7) {
+            pages.addAll(idsOf(index.search(TYPE_ID, x, y, Double.MAX_VALUE, from, 7)));
+        }
+        assertEquals(bruteForce(x, y, Double.MAX_VALUE, 0, 50), pages);
+    }
+
+    @Test
+    void incrementalUpdates() {
+        load(REGIONS[0], 100);
+        //移动一半店铺,删除其中一部分,再新增一批
+        for (int i = 0; i < ids.length; i += 2) {
+            xs[i] = REGIONS[0][0] + (random.nextDouble() * 2 - 1) * REGIONS[0][2];
+            ys[i] = REGIONS[0][1] + (random.nextDouble() * 2 - 1) * REGIONS[0][2];
+            index.put(TYPE_ID, ids[i], xs[i], ys[i]);
+        }
+        for (int i = 0; i < ids.length; i += 5) {
+            index.remove(ids[i]);
+            xs[i] = Double.NaN;
+        }
+        //换到其他类型的店铺不再出现在原类型的结果中
+        index.put(TYPE_ID + 1, ids[1], xs[1], ys[1]);
+        xs[1] = Double.NaN;
+        for (int q = 0; q < 50; q++) {
+            double x = REGIONS[0][0] + (random.nextDouble() * 2 - 1) * REGIONS[0][2];
+            double y = REGIONS[0][1] + (random.nextDouble() * 2 - 1) * REGIONS[0][2];
+            assertSearch(x, y, random.nextDouble() * 50000, 0, random.nextInt(30) + 1);
+        }
+    }
+
+    private void load(double[] region, int n) {
+        long[] typeIds = new long[n];
+        ids = new long[n];
+        xs = new double[n];
+        ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            typeIds[i] = TYPE_ID;
+            ids[i] = i + 1;
+            xs[i] = region[0] + (random.nextDouble() * 2 - 1) * region[2];
+            ys[i] = clampLat(region[1] + (random.nextDouble() * 2 - 1) * region[2]);
+        }
+        index.replaceAll(typeIds, ids, xs, ys);
+    }
+
+    private void assertSearch(double x, double y, double radius, int from, int size) {
+        List<ShopSpatialIndex.Neighbor> actual = index.search(TYPE_ID, x, y, radius, from, size);
+        String message = "x=" + x + ", y=" + y + ", radius=" + radius + ", from=" + from + ", size=" + size;
+        assertEquals(bruteForce(x, y, radius, from, size), idsOf(actual), message);
+        for (ShopSpatialIndex.Neighbor neighbor : actual) {
+            int i = (int) neighbor.getShopId() - 1;
+            assertEquals(distance(x, y, xs[i], ys[i]), neighbor.getDistance(), 1e-6, message);
+        }
+    }
+
+    /**
+     * 计算所有店铺的距离后排序,被删除的店铺坐标为NaN
+     */
+    private List<Long> bruteForce(double x, double y, double radius, int from, int size) {
+        return Arrays.stream(ids)
+                .filter(id -> !Double.isNaN(xs[(int) id - 1]))
+                .boxed()
+                .sorted(Comparator.comparingDouble(id -> distance(x, y, xs[(int) (long) id - 1], ys[(int) (long) id - 1])))
+                .filter(id -> distance(x, y, xs[(int) (long) id - 1], ys[(int) (long) id - 1]) <= radius)
+                .skip(from)
+                .limit(size)
+                .collect(Collectors.toList());
+    }
+
+    private static List<Long> idsOf(List<ShopSpatialIndex.Neighbor> neighbors) {
+        return neighbors.stream().map(ShopSpatialIndex.Neighbor::getShopId).collect(Collectors.toList());
+    }
+
+    private static double clampLat(double y) {
+        return Math.max(-90, Math.min(90, y));
+    }
+
+    private static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2.0 * EARTH_RADIUS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+}